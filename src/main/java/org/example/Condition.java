@@ -2,7 +2,22 @@ package org.example;
 
 public class Condition extends ExpressionAndSeparator{
 
+    private Predicate predicate;
+
     public Condition(String expression, String separator) {
         super(expression, separator);
     }
+
+    public Condition(String expression, String separator, Predicate predicate) {
+        super(expression, separator);
+        this.predicate = predicate;
+    }
+
+    /**
+     * Returns the predicate this condition was rendered from, or null if it was
+     * given as plain SQL.
+     */
+    public Predicate getPredicate() {
+        return predicate;
+    }
 }
@@ -0,0 +1,129 @@
+package org.example;
+
+import java.util.List;
+
+/**
+ * SQL dialects, as far as they differ in how a {@link SelectBuilder} renders
+ * its limit and offset.
+ */
+public enum Dialect {
+
+    /**
+     * Renders "LIMIT limit, offset", as SelectBuilder always has.
+     */
+    DEFAULT {
+        @Override
+        void appendLimit(StringBuilder sql, int limit, int offset) {
+            if (limit > 0)
+                sql.append(" LIMIT ").append(limit);
+            if (offset > 0)
+                sql.append(", ").append(offset);
+        }
+
+        @Override
+        void appendLimitPlaceholders(StringBuilder sql) {
+            sql.append(" LIMIT ?, ?");
+        }
+
+        @Override
+        void addLimitParameters(List<Object> parameters, int limit, int offset) {
+            parameters.add(limit);
+            parameters.add(offset);
+        }
+    },
+
+    /**
+     * Renders "LIMIT offset, limit".
+     */
+    MYSQL {
+        @Override
+        void appendLimit(StringBuilder sql, int limit, int offset) {
+            if (limit > 0) {
+                sql.append(" LIMIT ");
+                if (offset > 0) {
+                    sql.append(offset).append(", ");
+                }
+                sql.append(limit);
+            }
+        }
+
+        @Override
+        void appendLimitPlaceholders(StringBuilder sql) {
+            sql.append(" LIMIT ?, ?");
+        }
+
+        @Override
+        void addLimitParameters(List<Object> parameters, int limit, int offset) {
+            parameters.add(offset);
+            parameters.add(limit);
+        }
+    },
+
+    /**
+     * Renders "LIMIT limit OFFSET offset". Also understood by H2, HSQLDB and
+     * SQLite.
+     */
+    POSTGRESQL {
+        @Override
+        void appendLimit(StringBuilder sql, int limit, int offset) {
+            if (limit > 0) {
+                sql.append(" LIMIT ").append(limit);
+                if (offset > 0) {
+                    sql.append(" OFFSET ").append(offset);
+                }
+            }
+        }
+
+        @Override
+        void appendLimitPlaceholders(StringBuilder sql) {
+            sql.append(" LIMIT ? OFFSET ?");
+        }
+
+        @Override
+        void addLimitParameters(List<Object> parameters, int limit, int offset) {
+            parameters.add(limit);
+            parameters.add(offset);
+        }
+    },
+
+    /**
+     * Renders the standard "OFFSET offset ROWS FETCH NEXT limit ROWS ONLY",
+     * which SQL Server requires to follow an ORDER BY.
+     */
+    SQL_SERVER {
+        @Override
+        void appendLimit(StringBuilder sql, int limit, int offset) {
+            if (limit > 0) {
+                sql.append(" OFFSET ").append(offset).append(" ROWS FETCH NEXT ").append(limit).append(" ROWS ONLY");
+            }
+        }
+
+        @Override
+        void appendLimitPlaceholders(StringBuilder sql) {
+            sql.append(" OFFSET ? ROWS FETCH NEXT ? ROWS ONLY");
+        }
+
+        @Override
+        void addLimitParameters(List<Object> parameters, int limit, int offset) {
+            parameters.add(offset);
+            parameters.add(limit);
+        }
+    };
+
+    /**
+     * Appends the limit and offset as literals.
+     */
+    abstract void appendLimit(StringBuilder sql, int limit, int offset);
+
+    /**
+     * Appends placeholders for the limit and offset. Both placeholders are
+     * always rendered so that every page shares the same SQL.
+     */
+    abstract void appendLimitPlaceholders(StringBuilder sql);
+
+    /**
+     * Adds the limit and offset to the parameters, in the order of the
+     * placeholders appended by {@link #appendLimitPlaceholders(StringBuilder)}.
+     */
+    abstract void addLimitParameters(List<Object> parameters, int limit, int offset);
+}
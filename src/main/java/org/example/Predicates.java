@@ -1,6 +1,7 @@
 package org.example;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
@@ -32,18 +33,51 @@ public class Predicates {
      *            Value to which the SQL expression is compared.
      */
     public static Predicate eq(final String expr, final Object value) {
-        return new Predicate() {
+        return new RoutablePredicate() {
             public void init(SelectBuilder creator) {
                 creator.parameters(value);
             }
             public String toSql() {
                 return String.format("%s = ?", expr);
             }
+            public String getExpression() {
+                return expr;
+            }
+            public List<?> getValues() {
+                return Collections.singletonList(value);
+            }
+            public Object getStart() {
+                return null;
+            }
+            public Object getEnd() {
+                return null;
+            }
         };
     }
 
-    public static Predicate between(final String expr, final Object start, final Object end) {
+    /**
+     * Adds an equals clause between two SQL expressions, typically columns.
+     * Used to correlate a subquery with its outer query, so neither side is
+     * bound as a parameter.
+     *
+     * @param expr
+     *            SQL expression to be compared for equality.
+     * @param otherExpr
+     *            SQL expression to which the first one is compared.
+     */
+    public static Predicate eqColumn(final String expr, final String otherExpr) {
         return new Predicate() {
+            public void init(SelectBuilder creator) {
+                //no value need to be added to parameters
+            }
+            public String toSql() {
+                return String.format("%s = %s", expr, otherExpr);
+            }
+        };
+    }
+
+    public static Predicate between(final String expr, final Object start, final Object end) {
+        return new RoutablePredicate() {
             @Override
             public void init(SelectBuilder creator) {
                 Objects.requireNonNull(start, "start must not be null!");
@@ -56,6 +90,26 @@ public class Predicates {
             public String toSql() {
                 return String.format("%s BETWEEN ? AND ?", expr);
             }
+
+            @Override
+            public String getExpression() {
+                return expr;
+            }
+
+            @Override
+            public List<?> getValues() {
+                return null;
+            }
+
+            @Override
+            public Object getStart() {
+                return start;
+            }
+
+            @Override
+            public Object getEnd() {
+                return end;
+            }
         };
     }
 
@@ -70,7 +124,7 @@ public class Predicates {
      */
     public static Predicate in(final String expr, final List<?> values) {
 
-        return new Predicate() {
+        return new RoutablePredicate() {
 
             private String sql;
 
@@ -97,6 +151,116 @@ public class Predicates {
             public String toSql() {
                 return sql;
             }
+
+            public String getExpression() {
+                return expr;
+            }
+
+            public List<?> getValues() {
+                return values;
+            }
+
+            public Object getStart() {
+                return null;
+            }
+
+            public Object getEnd() {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Adds an IN clause whose values are produced by a subquery. The
+     * subquery's parameters are merged into the creator at this position.
+     *
+     * @param expr
+     *            SQL expression to be tested for inclusion.
+     * @param subSelect
+     *            Subquery producing the values for the IN clause.
+     */
+    public static Predicate inSubSelect(final String expr, final SelectBuilder subSelect) {
+        return subSelect(expr + " in", subSelect);
+    }
+
+    /**
+     * Adds an EXISTS clause to a creator. The subquery may be correlated with
+     * the outer query by referring to its tables in a where expression.
+     *
+     * @param subSelect
+     *            Subquery to be tested for existence of rows.
+     */
+    public static Predicate exists(final SelectBuilder subSelect) {
+        return subSelect("exists", subSelect);
+    }
+
+    /**
+     * Adds a NOT EXISTS clause to a creator.
+     *
+     * @param subSelect
+     *            Subquery to be tested for absence of rows.
+     */
+    public static Predicate notExists(final SelectBuilder subSelect) {
+        return subSelect("not exists", subSelect);
+    }
+
+    /**
+     * Adds an equals clause comparing an expression with the single value
+     * returned by a (possibly correlated) scalar subquery.
+     *
+     * @param expr
+     *            SQL expression to be compared for equality.
+     * @param subSelect
+     *            Scalar subquery to which the SQL expression is compared.
+     */
+    public static Predicate eqSubSelect(final String expr, final SelectBuilder subSelect) {
+        return subSelect(expr + " =", subSelect);
+    }
+
+    public static Predicate neqSubSelect(final String expr, final SelectBuilder subSelect) {
+        return subSelect(expr + " <>", subSelect);
+    }
+
+    public static Predicate gtSubSelect(final String expr, final SelectBuilder subSelect) {
+        return subSelect(expr + " >", subSelect);
+    }
+
+    public static Predicate gteSubSelect(final String expr, final SelectBuilder subSelect) {
+        return subSelect(expr + " >=", subSelect);
+    }
+
+    public static Predicate ltSubSelect(final String expr, final SelectBuilder subSelect) {
+        return subSelect(expr + " <", subSelect);
+    }
+
+    public static Predicate lteSubSelect(final String expr, final SelectBuilder subSelect) {
+        return subSelect(expr + " <=", subSelect);
+    }
+
+    /**
+     * Factory for predicates of the form "prefix (subquery)". The subquery's
+     * parameters are appended to the creator when the predicate is added, so
+     * they line up with the position of the subquery in the generated SQL.
+     *
+     * @throws IllegalArgumentException
+     *             if the subquery is a {@link SubSelectBuilder}, which renders
+     *             with a column alias that is not valid here.
+     */
+    private static Predicate subSelect(final String prefix, final SelectBuilder subSelect) {
+        Objects.requireNonNull(subSelect, "subSelect must not be null!");
+        if (subSelect instanceof SubSelectBuilder) {
+            throw new IllegalArgumentException("subSelect must be a SelectBuilder, not a SubSelectBuilder,"
+                    + " which is meant for columns");
+        }
+        return new Predicate() {
+            public void init(SelectBuilder creator) {
+                for (Object value : subSelect.getParameters()) {
+                    creator.parameters(value);
+                }
+            }
+            public String toSql() {
+                return prefix + " (" + subSelect.render() + ")";
+            }
         };
     }
 
@@ -0,0 +1,308 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * An immutable set of named queries, compiled from {@link SelectBuilder}
+ * templates ahead of time and stored in a compact binary file, so that
+ * services can load their queries at startup without running builder code.
+ * <p>
+ * A build step calls {@link #compile(Map)} and {@link #write(Path)}; services
+ * then call {@link #load(Path)}, which maps the file into memory and reads it
+ * in one pass. The file holds, for each query, its SQL, the types of its
+ * parameter slots, the fingerprint of its SQL and the tables it reads, and
+ * ends with a CRC32 checksum.
+ */
+public class QueryCatalog {
+
+    /**
+     * "SQBC", the first bytes of a catalog file.
+     */
+    private static final int MAGIC = 0x53514243;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final Map<String, CompiledQuery> queries;
+
+    private QueryCatalog(Map<String, CompiledQuery> queries) {
+        this.queries = Collections.unmodifiableMap(queries);
+    }
+
+    /**
+     * Compiles the given builders, keyed by query name. The types of the
+     * parameter slots are those of the builders' parameter values, including
+     * those of sub-select columns and unions, so the templates should be
+     * built with representative values.
+     *
+     * @throws IllegalArgumentException
+     *             if the SQL of a template has more or fewer placeholders
+     *             than it has parameters.
+     */
+    public static QueryCatalog compile(Map<String, ? extends SelectBuilder> templates) {
+        Map<String, CompiledQuery> queries = new LinkedHashMap<>();
+        for (Map.Entry<String, ? extends SelectBuilder> template : templates.entrySet()) {
+            SelectBuilder builder = template.getValue();
+            String sql = builder.render();
+
+            List<Object> parameters = builder.getAllParameters();
+            int placeholders = countPlaceholders(sql);
+            if (placeholders != parameters.size()) {
+                throw new IllegalArgumentException("Query '" + template.getKey() + "' has " + placeholders
+                        + " placeholders but " + parameters.size() + " parameters: " + sql);
+            }
+
+            List<String> parameterTypes = new ArrayList<>();
+            for (Object parameter : parameters) {
+                parameterTypes.add(parameter == null ? null : parameter.getClass().getName());
+            }
+
+            queries.put(template.getKey(), new CompiledQuery(template.getKey(), sql, parameterTypes,
+                    SqlShapeAuditor.fingerprint(sql), new ArrayList<>(builder.getTableNames())));
+        }
+        return new QueryCatalog(queries);
+    }
+
+    /**
+     * Reads a catalog written by {@link #write(Path)}.
+     *
+     * @throws IOException
+     *             if the file can't be read or is not a valid catalog.
+     */
+    public static QueryCatalog load(Path file) throws IOException {
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            CRC32 crc = new CRC32();
+            ByteBuffer content = buffer.duplicate();
+            // through Buffer, whose limit(int) also exists on Java 8
+            ((Buffer) content).limit(buffer.limit() - 4);
+            crc.update(content);
+            if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4)) {
+                throw new IOException("Corrupt query catalog " + file + ": checksum mismatch");
+            }
+
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a query catalog: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported query catalog version " + version + " in " + file);
+            }
+
+            // parameter types and tables repeat across queries, share their strings
+            Map<String, String> strings = new HashMap<>();
+
+            int count = buffer.getInt();
+            // keeps the order of the file, so that writing the catalog again gives the same bytes
+            Map<String, CompiledQuery> queries = new LinkedHashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String name = readString(buffer, null);
+                String sql = readString(buffer, null);
+                long fingerprint = buffer.getLong();
+                List<String> parameterTypes = readStrings(buffer, strings);
+                List<String> tables = readStrings(buffer, strings);
+                queries.put(name, new CompiledQuery(name, sql, parameterTypes, fingerprint, tables));
+            }
+            return new QueryCatalog(queries);
+        } catch (RuntimeException e) {
+            // BufferUnderflowException and the like on a truncated file
+            throw new IOException("Corrupt query catalog " + file, e);
+        }
+    }
+
+    /**
+     * Writes the catalog to a file, replacing it if it exists.
+     */
+    public void write(Path file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(out);
+        }
+    }
+
+    public void write(OutputStream out) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        data.writeInt(queries.size());
+        for (CompiledQuery query : queries.values()) {
+            writeString(data, query.getName());
+            writeString(data, query.getSql());
+            data.writeLong(query.getFingerprint());
+            writeStrings(data, query.getParameterTypes());
+            writeStrings(data, query.getTables());
+        }
+        data.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        data.writeInt((int) crc.getValue());
+        data.flush();
+
+        bytes.writeTo(out);
+    }
+
+    /**
+     * Returns the query with the given name, or null if there is none.
+     */
+    public CompiledQuery get(String name) {
+        return queries.get(name);
+    }
+
+    /**
+     * Returns the names of the queries, in the order they were compiled.
+     */
+    public Set<String> getNames() {
+        return queries.keySet();
+    }
+
+    public int size() {
+        return queries.size();
+    }
+
+    /**
+     * Counts the ? placeholders of the SQL, outside of string literals.
+     */
+    private static int countPlaceholders(String sql) {
+        int count = 0;
+        boolean literal = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                // a quote doubled within a literal ends it and starts it again
+                literal = !literal;
+            } else if (c == '?' && !literal) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void writeStrings(DataOutputStream data, List<String> strings) throws IOException {
+        data.writeInt(strings.size());
+        for (String s : strings) {
+            writeString(data, s);
+        }
+    }
+
+    /**
+     * Writes a string as its length in UTF-8 bytes followed by those bytes, or
+     * -1 for null.
+     */
+    private static void writeString(DataOutputStream data, String s) throws IOException {
+        if (s == null) {
+            data.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(utf8.length);
+        data.write(utf8);
+    }
+
+    private static List<String> readStrings(ByteBuffer buffer, Map<String, String> strings) {
+        int count = buffer.getInt();
+        List<String> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(readString(buffer, strings));
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    private static String readString(ByteBuffer buffer, Map<String, String> strings) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] utf8 = new byte[length];
+        buffer.get(utf8);
+        String s = new String(utf8, StandardCharsets.UTF_8);
+        if (strings != null) {
+            String shared = strings.get(s);
+            if (shared != null) {
+                return shared;
+            }
+            strings.put(s, s);
+        }
+        return s;
+    }
+
+    /**
+     * A query of a {@link QueryCatalog}.
+     */
+    public static class CompiledQuery {
+
+        private final String name;
+
+        private final String sql;
+
+        private final List<String> parameterTypes;
+
+        private final long fingerprint;
+
+        private final List<String> tables;
+
+        private CompiledQuery(String name, String sql, List<String> parameterTypes, long fingerprint,
+                              List<String> tables) {
+            this.name = name;
+            this.sql = sql;
+            this.parameterTypes = Collections.unmodifiableList(parameterTypes);
+            this.fingerprint = fingerprint;
+            this.tables = Collections.unmodifiableList(tables);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * Returns the class names of the parameters, in the order of their
+         * placeholders. An entry is null where the template's value was null.
+         */
+        public List<String> getParameterTypes() {
+            return parameterTypes;
+        }
+
+        /**
+         * Returns a 64 bit hash of the SQL, identifying its shape.
+         */
+        public long getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * Returns the names of the tables the query reads.
+         */
+        public List<String> getTables() {
+            return tables;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.example;
+
+import java.util.List;
+
+/**
+ * A predicate restricting a single SQL expression to a list of values or to a
+ * range, which lets a {@link ShardRouter} work out which shards can hold the
+ * matching rows.
+ */
+public interface RoutablePredicate extends Predicate {
+
+    /**
+     * Returns the SQL expression being restricted.
+     */
+    public String getExpression();
+
+    /**
+     * Returns the values one of which the expression must equal, or null if
+     * the predicate restricts it to a range.
+     */
+    public List<?> getValues();
+
+    /**
+     * Returns the inclusive lower bound of the range, or null if the predicate
+     * restricts the expression to a list of values.
+     */
+    public Object getStart();
+
+    /**
+     * Returns the inclusive upper bound of the range, or null if the predicate
+     * restricts the expression to a list of values.
+     */
+    public Object getEnd();
+}
@@ -0,0 +1,200 @@
+package org.example;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+/**
+ * Tables, columns and indexes of a database schema, read once from its JDBC
+ * {@link DatabaseMetaData} and kept in memory. A {@link SelectBuilder} given a
+ * catalog expands "*" into the table's columns, leaving out heavy ones, and
+ * checks the column names it is given.
+ * <p>
+ * Table and column names are looked up ignoring case. Columns of a large
+ * object type (BLOB, CLOB, LONGVARCHAR and the like) are heavy from the
+ * start; others can be marked with {@link #markHeavy(String, String)}.
+ */
+public class SchemaCatalog {
+
+    private final Map<String, Table> tables;
+
+    private final Set<String> heavyColumns = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Incremented whenever a column is marked heavy, so that builders using
+     * the catalog expand "*" again.
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    private SchemaCatalog(Map<String, Table> tables) {
+        this.tables = tables;
+        for (Table table : tables.values()) {
+            for (Map.Entry<String, Integer> column : table.columnTypes.entrySet()) {
+                if (isLargeObject(column.getValue())) {
+                    markHeavy(table.name, column.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the tables and views of the data source's default schema.
+     */
+    public static SchemaCatalog load(DataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            return load(connection);
+        }
+    }
+
+    /**
+     * Reads the tables and views of the connection's current schema.
+     */
+    public static SchemaCatalog load(Connection connection) throws SQLException {
+
+        DatabaseMetaData metaData = connection.getMetaData();
+        String catalog = connection.getCatalog();
+        String schema = connection.getSchema();
+
+        Map<String, Table> tables = new HashMap<>();
+
+        try (ResultSet rs = metaData.getTables(catalog, schema, "%", new String[] {"TABLE", "VIEW"})) {
+            while (rs.next()) {
+                Table table = new Table(rs.getString("TABLE_NAME"));
+                tables.put(key(table.name), table);
+            }
+        }
+
+        for (Table table : tables.values()) {
+
+            try (ResultSet rs = metaData.getColumns(catalog, schema, table.name, "%")) {
+                while (rs.next()) {
+                    table.columnTypes.put(rs.getString("COLUMN_NAME"), rs.getInt("DATA_TYPE"));
+                }
+            }
+
+            try (ResultSet rs = metaData.getIndexInfo(catalog, schema, table.name, false, true)) {
+                while (rs.next()) {
+                    String index = rs.getString("INDEX_NAME");
+                    String column = rs.getString("COLUMN_NAME");
+                    if (index == null || column == null) {
+                        // table statistics
+                        continue;
+                    }
+                    List<String> columns = table.indexes.get(index);
+                    if (columns == null) {
+                        columns = new ArrayList<>();
+                        table.indexes.put(index, columns);
+                    }
+                    columns.add(column);
+                }
+            }
+        }
+
+        return new SchemaCatalog(tables);
+    }
+
+    /**
+     * Marks a column as heavy, so that it is left out when "*" is expanded,
+     * including by builders that already generated their SQL.
+     */
+    public SchemaCatalog markHeavy(String table, String column) {
+        if (heavyColumns.add(key(table) + "." + key(column))) {
+            version.incrementAndGet();
+        }
+        return this;
+    }
+
+    /**
+     * Returns a number that grows whenever the catalog changes.
+     */
+    long version() {
+        return version.get();
+    }
+
+    public boolean isHeavy(String table, String column) {
+        return heavyColumns.contains(key(table) + "." + key(column));
+    }
+
+    public boolean hasTable(String table) {
+        return tables.containsKey(key(table));
+    }
+
+    /**
+     * Returns the columns of a table in their declared order, or null if the
+     * table is unknown.
+     */
+    public List<String> getColumns(String table) {
+        Table t = tables.get(key(table));
+        return t == null ? null : Collections.unmodifiableList(new ArrayList<>(t.columnTypes.keySet()));
+    }
+
+    /**
+     * Returns the name of a table's column as declared, or null if the table
+     * or the column is unknown.
+     */
+    public String getColumn(String table, String column) {
+        Table t = tables.get(key(table));
+        if (t != null) {
+            for (String name : t.columnTypes.keySet()) {
+                if (name.equalsIgnoreCase(column)) {
+                    return name;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the indexes of a table, each mapped to its columns in index
+     * order, or an empty map if the table is unknown.
+     */
+    public Map<String, List<String>> getIndexes(String table) {
+        Table t = tables.get(key(table));
+        return t == null ? Collections.<String, List<String>>emptyMap() : Collections.unmodifiableMap(t.indexes);
+    }
+
+    private static boolean isLargeObject(int type) {
+        switch (type) {
+            case Types.BLOB:
+            case Types.CLOB:
+            case Types.NCLOB:
+            case Types.LONGVARBINARY:
+            case Types.LONGVARCHAR:
+            case Types.LONGNVARCHAR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static class Table {
+
+        private final String name;
+
+        private final Map<String, Integer> columnTypes = new LinkedHashMap<>();
+
+        private final Map<String, List<String>> indexes = new LinkedHashMap<>();
+
+        private Table(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -2,12 +2,45 @@ package org.example;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 public class SelectBuilder {
 
+    /**
+     * A plain, optionally qualified, column name, as opposed to an expression.
+     */
+    private static final Pattern COLUMN_NAME = Pattern.compile("(?:(\\w+)\\.)?(\\w+)");
+
+    /**
+     * A column with an alias, written with or without AS. Without AS the
+     * expression must end like an operand, and not with DISTINCT or ALL.
+     */
+    private static final Pattern COLUMN_ALIAS = Pattern.compile(
+            "(.*?)\\s+(?i:as)\\s+(\\w+)|(.*?[\\w)\"'\\]])(?<!\\b(?i:distinct|all))\\s+(\\w+)");
+
+    /**
+     * Keywords and niladic functions that look like plain column names.
+     */
+    private static final Set<String> SQL_KEYWORDS = new HashSet<>(Arrays.asList(
+            "NULL", "TRUE", "FALSE", "DEFAULT", "CURRENT_DATE", "CURRENT_TIME", "CURRENT_TIMESTAMP",
+            "LOCALTIME", "LOCALTIMESTAMP", "CURRENT_USER", "SESSION_USER", "SYSTEM_USER", "USER",
+            "CURRENT_ROLE", "CURRENT_SCHEMA", "CURRENT_CATALOG", "SYSDATE", "SYSTIMESTAMP", "ROWNUM"));
+
+    private static final Pattern ORDER_DIRECTION = Pattern.compile("(.*?)\\s+(?i:asc|desc)");
+
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_$]*");
+
     private boolean distinct;
 
     private final List<Object> columns = new ArrayList<>();
@@ -30,8 +63,53 @@ public class SelectBuilder {
 
     private int offset = 0;
 
+    private Dialect dialect = Dialect.DEFAULT;
+
+    private boolean bindLimit;
+
+    private SchemaCatalog catalog;
+
+    /**
+     * The version of the catalog as of the last call to {@link #version()}.
+     */
+    private long catalogVersion;
+
     private final List<Object> parameters;
 
+    /**
+     * Clauses of the generated SQL, in the order they are rendered.
+     */
+    private enum Clause {
+        SELECT, FROM, JOIN, WHERE, GROUP_BY, HAVING, ORDER_BY, LIMIT, UNION
+    }
+
+    private static final Clause[] CLAUSES = Clause.values();
+
+    /**
+     * Incremented whenever a clause of this builder, a builder nested in it,
+     * or its catalog changes.
+     */
+    private long modCount;
+
+    /**
+     * The value of {@link #modCount} when each clause last changed, kept
+     * only once the builder has been rendered.
+     */
+    private long[] clauseVersions;
+
+    /**
+     * The sub-select columns and unions as of the last call to
+     * {@link #version()}.
+     */
+    private NestedBuilders nestedColumns = NestedBuilders.NONE;
+
+    private NestedBuilders nestedUnions = NestedBuilders.NONE;
+
+    /**
+     * The SQL last generated, or null.
+     */
+    private Rendering rendering;
+
     public SelectBuilder() {
         parameters = new LinkedList<>();
     }
@@ -68,23 +146,34 @@ public class SelectBuilder {
         this.unions.addAll(other.unions);
 
         this.orderBys.addAll(other.orderBys);
+        this.limit = other.limit;
+        this.offset = other.offset;
+        this.dialect = other.dialect;
+        this.bindLimit = other.bindLimit;
+        this.catalog = other.catalog;
         this.parameters = new LinkedList<>(other.parameters);
     }
 
     public SelectBuilder column(String... names) {
+        validateColumns(Arrays.asList(names));
         columns.addAll(Arrays.asList(names));
+        changed(Clause.SELECT);
         return this;
     }
 
     public SelectBuilder column(SubSelectBuilder subSelect) {
         columns.add(subSelect);
+        changed(Clause.SELECT);
         return this;
     }
 
     public SelectBuilder column(String name, boolean groupBy) {
+        validateColumns(Collections.singletonList(name));
         columns.add(name);
+        changed(Clause.SELECT);
         if (groupBy) {
             groupBys.add(name);
+            changed(Clause.GROUP_BY);
         }
         return this;
     }
@@ -92,6 +181,7 @@ public class SelectBuilder {
     public SelectBuilder limit(int limit, int offset) {
         this.limit = limit;
         this.offset = offset;
+        changed(Clause.LIMIT);
         return this;
     }
 
@@ -99,13 +189,57 @@ public class SelectBuilder {
         return limit(limit, 0);
     }
 
+    /**
+     * Sets the dialect used to render the limit and offset. Defaults to
+     * {@link Dialect#DEFAULT}.
+     */
+    public SelectBuilder dialect(Dialect dialect) {
+        this.dialect = dialect;
+        changed(Clause.LIMIT);
+        return this;
+    }
+
+    /**
+     * Renders the limit and offset as parameters instead of literals, so that
+     * every page and page size produce the same SQL and share one prepared
+     * statement. Their values are included in {@link #getParameters()}.
+     */
+    public SelectBuilder bindLimit() {
+        this.bindLimit = true;
+        changed(Clause.LIMIT);
+        return this;
+    }
+
+    /**
+     * Sets the schema catalog of the database the query runs on. With a
+     * catalog, "*" is expanded into the columns of the queried tables less
+     * their heavy columns, and plain column names are checked against the
+     * tables: those already given to {@link #column(String...)} and
+     * {@link #orderBy(String)} here, and later ones as they are given. The
+     * tables and joins should therefore be added first; {@link #validate()}
+     * checks every column again.
+     *
+     * @throws IllegalArgumentException
+     *             if a column is not found.
+     */
+    public SelectBuilder catalog(SchemaCatalog catalog) {
+        this.catalog = catalog;
+        validate();
+        this.catalogVersion = catalog != null ? catalog.version() : 0;
+        changed(Clause.SELECT);
+        changed(Clause.ORDER_BY);
+        return this;
+    }
+
     public SelectBuilder distinct() {
         this.distinct = true;
+        changed(Clause.SELECT);
         return this;
     }
 
     public SelectBuilder from(String table) {
         tables.add(table);
+        changed(Clause.FROM);
         return this;
     }
 
@@ -113,13 +247,70 @@ public class SelectBuilder {
         return unions;
     }
 
+    List<ExpressionAndSeparator> getWheres() {
+        return wheres;
+    }
+
+    boolean isDistinct() {
+        return distinct;
+    }
+
+    List<Object> getColumns() {
+        return columns;
+    }
+
+    List<String> getGroupBys() {
+        return groupBys;
+    }
+
+    List<ExpressionAndSeparator> getHavings() {
+        return havings;
+    }
+
+    List<String> getOrderBys() {
+        return orderBys;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the names of the tables this query reads, from its from clause
+     * and joins, and those of its sub-select columns and unions. Derived
+     * tables and subqueries within predicates are not included.
+     */
+    Set<String> getTableNames() {
+        Set<String> names = new LinkedHashSet<>();
+        for (String table : tableReferences().values()) {
+            if (!table.startsWith("(")) {
+                names.add(table);
+            }
+        }
+        for (Object column : columns) {
+            if (column instanceof SelectBuilder) {
+                names.addAll(((SelectBuilder) column).getTableNames());
+            }
+        }
+        for (SelectBuilder union : unions) {
+            names.addAll(union.getTableNames());
+        }
+        return names;
+    }
+
     public SelectBuilder groupBy(String expr) {
         groupBys.add(expr);
+        changed(Clause.GROUP_BY);
         return this;
     }
 
     private SelectBuilder having(String expr, String separator) {
         havings.add(new Condition(expr, separator));
+        changed(Clause.HAVING);
         return this;
     }
 
@@ -144,33 +335,75 @@ public class SelectBuilder {
         return this;
     }
 
+    /**
+     * Returns the parameters in the order of their placeholders. When the
+     * limit is bound, its values follow the where and having parameters in a
+     * new list; otherwise the builder's own list is returned.
+     */
     public List<Object> getParameters() {
-        return parameters;
+        if (!isLimitBound()) {
+            return parameters;
+        }
+        List<Object> all = new ArrayList<>(parameters);
+        dialect.addLimitParameters(all, limit, offset);
+        return all;
+    }
+
+    /**
+     * Returns the parameters of this query, its sub-select columns and its
+     * unions, in the order of their placeholders in the SQL.
+     */
+    List<Object> getAllParameters() {
+        List<Object> all = new ArrayList<>();
+        addAllParameters(all);
+        return all;
+    }
+
+    private void addAllParameters(List<Object> all) {
+        for (Object column : columns) {
+            if (column instanceof SelectBuilder) {
+                ((SelectBuilder) column).addAllParameters(all);
+            }
+        }
+        all.addAll(getParameters());
+        for (SelectBuilder union : unions) {
+            union.addAllParameters(all);
+        }
+    }
+
+    private boolean isLimitBound() {
+        return bindLimit && limit > 0;
     }
 
     public SelectBuilder join(String join) {
         joins.add(new Join(join, " JOIN "));
+        changed(Clause.JOIN);
         return this;
     }
 
     public SelectBuilder leftJoin(String join) {
         joins.add(new Join(join, " LEFT JOIN "));
+        changed(Clause.JOIN);
         return this;
     }
 
     public SelectBuilder rightJoin(String join) {
         joins.add(new Join(join, " RIGHT JOIN "));
+        changed(Clause.JOIN);
         return this;
     }
 
     public SelectBuilder fullOuterJoin(String join) {
         joins.add(new Join(join, " FULL OUTER JOIN "));
+        changed(Clause.JOIN);
         return this;
     }
 
 
     public SelectBuilder orderBy(String name) {
+        validateOrderBys(Collections.singletonList(name));
         orderBys.add(name);
+        changed(Clause.ORDER_BY);
         return this;
     }
 
@@ -184,43 +417,591 @@ public class SelectBuilder {
      *            the direction "desc".
      */
     public SelectBuilder orderBy(String name, boolean ascending) {
+        validateOrderBys(Collections.singletonList(name));
         if (ascending) {
             orderBys.add(name + " ASC");
         } else {
             orderBys.add(name + " DESC");
         }
+        changed(Clause.ORDER_BY);
         return this;
     }
 
 
 
+    /**
+     * Generates the SQL. The SQL is kept and returned again until the builder
+     * changes. A builder that is changed and rendered again also keeps where
+     * each clause ends, so that from then on only the changed clauses are
+     * rendered and the others are copied from the previous SQL. Sub-select
+     * columns and unions are likewise rendered again only when they change.
+     * <p>
+     * The SQL is recorded by the enabled {@link SqlShapeAuditor}, if any.
+     * Several threads may render a builder at once, as long as none of them
+     * changes it or the builders nested in it.
+     */
     @Override
     public String toString() {
+        String sql = render();
+        SqlShapeAuditor.audit(sql);
+        return sql;
+    }
 
-        StringBuilder sql = new StringBuilder("SELECT ");
+    /**
+     * Generates the SQL without auditing it, for nesting in another query.
+     */
+    String render() {
 
-        if (distinct) {
-            sql.append("distinct ");
+        long version = version();
+        Rendering previous = rendering;
+        if (previous != null && previous.version == version) {
+            return previous.sql;
         }
 
-        if (columns.isEmpty()) {
-            sql.append("*");
+        StringBuilder sql = new StringBuilder();
+        int[] clauseEnds = null;
+        if (previous == null) {
+            // rendered once in most cases, so skip the bookkeeping
+            for (Clause clause : CLAUSES) {
+                appendClause(sql, clause);
+            }
         } else {
-            appendList(sql, columns, "", ", ");
+            clauseEnds = new int[CLAUSES.length];
+            for (Clause clause : CLAUSES) {
+                int index = clause.ordinal();
+                if (isUnchanged(clause, previous)) {
+                    sql.append(previous.sql, index == 0 ? 0 : previous.clauseEnds[index - 1],
+                            previous.clauseEnds[index]);
+                } else {
+                    appendClause(sql, clause);
+                }
+                clauseEnds[index] = sql.length();
+            }
+        }
+
+        Rendering current = new Rendering(sql.toString(), version, clauseEnds, nestedColumns, nestedUnions,
+                catalogVersion);
+        rendering = current;
+        return current.sql;
+    }
+
+    /**
+     * Returns whether a clause is the same as when the previous SQL was
+     * generated and the previous SQL says where it is.
+     */
+    private boolean isUnchanged(Clause clause, Rendering previous) {
+        if (previous.clauseEnds == null
+                || clauseVersions != null && clauseVersions[clause.ordinal()] > previous.version) {
+            return false;
+        }
+        switch (clause) {
+            case SELECT:
+                return previous.nestedColumns == nestedColumns && previous.catalogVersion == catalogVersion;
+            case UNION:
+                return previous.nestedUnions == nestedUnions;
+            default:
+                return true;
+        }
+    }
+
+    private void appendClause(StringBuilder sql, Clause clause) {
+        switch (clause) {
+            case SELECT:
+                sql.append("SELECT ");
+                if (distinct) {
+                    sql.append("distinct ");
+                }
+                if (catalog != null) {
+                    appendList(sql, expandColumns(), "", ", ");
+                } else if (columns.isEmpty()) {
+                    sql.append("*");
+                } else {
+                    appendList(sql, columns, "", ", ");
+                }
+                break;
+            case FROM:
+                appendList(sql, tables, " FROM ", ", ");
+                break;
+            case JOIN:
+                appendList(sql, joins, !joins.isEmpty() ? joins.get(0).getSeparator() : " ");
+                break;
+            case WHERE:
+                appendList(sql, wheres, " WHERE ");
+                break;
+            case GROUP_BY:
+                appendList(sql, groupBys, " GROUP BY ", ", ");
+                break;
+            case HAVING:
+                appendList(sql, havings, " HAVING ");
+                break;
+            case ORDER_BY:
+                appendList(sql, orderBys, " ORDER BY ", ", ");
+                break;
+            case LIMIT:
+                if (isLimitBound()) {
+                    dialect.appendLimitPlaceholders(sql);
+                } else {
+                    dialect.appendLimit(sql, limit, offset);
+                }
+                break;
+            case UNION:
+                appendList(sql, unions, " UNION ", " UNION ");
+                break;
+        }
+    }
+
+    /**
+     * Records that a clause changed.
+     */
+    private void changed(Clause clause) {
+        modCount++;
+        if (rendering != null) {
+            if (clauseVersions == null) {
+                clauseVersions = new long[CLAUSES.length];
+            }
+            clauseVersions[clause.ordinal()] = modCount;
+            if (clause == Clause.FROM || clause == Clause.JOIN) {
+                // "*" expands to the columns of the tables
+                clauseVersions[Clause.SELECT.ordinal()] = modCount;
+            }
+        }
+    }
+
+    /**
+     * Returns a number that grows whenever this builder, a sub-select column
+     * or union nested in it, or its catalog changes. Changes to the nested
+     * builders and the catalog are detected here.
+     */
+    long version() {
+        if (catalog != null && catalog.version() != catalogVersion) {
+            catalogVersion = catalog.version();
+            modCount++;
+        }
+        NestedBuilders columnsNow = nestedColumns.update(columns);
+        if (columnsNow != nestedColumns) {
+            nestedColumns = columnsNow;
+            modCount++;
+        }
+        NestedBuilders unionsNow = nestedUnions.update(unions);
+        if (unionsNow != nestedUnions) {
+            nestedUnions = unionsNow;
+            modCount++;
+        }
+        return modCount;
+    }
+
+    /**
+     * Generated SQL, with what it was generated from. Immutable, so that it
+     * can be shared between threads rendering the same builder.
+     */
+    private static final class Rendering {
+
+        private final String sql;
+
+        private final long version;
+
+        /**
+         * The offset in the SQL at which each clause ends, or null.
+         */
+        private final int[] clauseEnds;
+
+        private final NestedBuilders nestedColumns;
+
+        private final NestedBuilders nestedUnions;
+
+        private final long catalogVersion;
+
+        private Rendering(String sql, long version, int[] clauseEnds, NestedBuilders nestedColumns,
+                          NestedBuilders nestedUnions, long catalogVersion) {
+            this.sql = sql;
+            this.version = version;
+            this.clauseEnds = clauseEnds;
+            this.nestedColumns = nestedColumns;
+            this.nestedUnions = nestedUnions;
+            this.catalogVersion = catalogVersion;
         }
+    }
+
+    /**
+     * The builders of a list, and their versions. Immutable, for the same
+     * reason as {@link Rendering}.
+     */
+    private static final class NestedBuilders {
+
+        private static final NestedBuilders NONE = new NestedBuilders(new SelectBuilder[0], new long[0]);
+
+        private final SelectBuilder[] builders;
+
+        private final long[] versions;
+
+        private NestedBuilders(SelectBuilder[] builders, long[] versions) {
+            this.builders = builders;
+            this.versions = versions;
+        }
+
+        /**
+         * Compares the builders in a list, one by one, with these, by identity
+         * and version. Returns this if they are the same, including in
+         * number, and the builders of the list otherwise, so that builders
+         * replaced or removed through {@link #getUnions()} are noticed.
+         */
+        private NestedBuilders update(List<?> list) {
+
+            int count = 0;
+            boolean same = true;
+            for (Object item : list) {
+                if (item instanceof SelectBuilder) {
+                    SelectBuilder builder = (SelectBuilder) item;
+                    if (count >= builders.length || builders[count] != builder
+                            || versions[count] != builder.version()) {
+                        same = false;
+                    }
+                    count++;
+                }
+            }
+            if (same && count == builders.length) {
+                return this;
+            }
+
+            SelectBuilder[] newBuilders = new SelectBuilder[count];
+            long[] newVersions = new long[count];
+            count = 0;
+            for (Object item : list) {
+                if (item instanceof SelectBuilder) {
+                    newBuilders[count] = (SelectBuilder) item;
+                    newVersions[count] = newBuilders[count].version();
+                    count++;
+                }
+            }
+            return new NestedBuilders(newBuilders, newVersions);
+        }
+    }
 
-        appendList(sql, tables, " FROM ", ", ");
-        appendList(sql, joins, !joins.isEmpty() ? joins.get(0).getSeparator() : " ");
-        appendList(sql, wheres, " WHERE ");
-        appendList(sql, groupBys, " GROUP BY ", ", ");
-        appendList(sql, havings, " HAVING ");
-        appendList(sql, orderBys, " ORDER BY ", ", ");
-        if(limit > 0)
-            sql.append(" LIMIT ").append(limit);
-        if(offset > 0)
-            sql.append(", ").append(offset);
-        appendList(sql, unions, " UNION ", " UNION ");
-        return sql.toString();
+    /**
+     * Derives a query counting the rows this query would return without its
+     * limit. Equivalent to {@code toCountQuery(false)}.
+     */
+    public SelectBuilder toCountQuery() {
+        return toCountQuery(false);
+    }
+
+    /**
+     * Derives a query counting the rows this query would return without its
+     * limit. The order by, limit and offset are dropped. Plain queries have
+     * their columns replaced with COUNT(*); distinct, grouped and union
+     * queries are wrapped in a derived table so their rows are counted rather
+     * than the rows that feed them.
+     *
+     * @param pruneLeftJoins
+     *            If true, LEFT JOINs whose table is not referenced, as
+     *            "alias.column", by any other clause are dropped as well. Only pass true when such joins are
+     *            known to match at most one row, otherwise the count changes.
+     */
+    public SelectBuilder toCountQuery(boolean pruneLeftJoins) {
+
+        boolean wrap = distinct || !groupBys.isEmpty() || !unions.isEmpty();
+
+        SelectBuilder inner = new SelectBuilder(this);
+        inner.orderBys.clear();
+        inner.changed(Clause.ORDER_BY);
+        inner.limit(0, 0);
+
+        if (!wrap) {
+            inner.columns.clear();
+            inner.changed(Clause.SELECT);
+        }
+
+        if (pruneLeftJoins) {
+            inner.pruneLeftJoins();
+        }
+
+        if (!wrap) {
+            return inner.column("COUNT(*)");
+        }
+
+        SelectBuilder count = new SelectBuilder("(" + inner.render() + ") count_query").column("COUNT(*)");
+        count.parameters.addAll(inner.parameters);
+        return count;
+    }
+
+    /**
+     * Derives a query returning this query's page along with the total row
+     * count, as an extra column computed by the window function COUNT(*)
+     * OVER(), so a single round trip serves a paginated listing.
+     *
+     * @param alias
+     *            Name of the column holding the total row count.
+     * @throws IllegalStateException
+     *             if the query is distinct or has unions, since the window
+     *             function is evaluated before those are applied.
+     */
+    public SelectBuilder withTotalCount(String alias) {
+        if (distinct || !unions.isEmpty()) {
+            throw new IllegalStateException("Total count column is not supported for distinct or union queries");
+        }
+        SelectBuilder page = new SelectBuilder(this);
+        if (page.columns.isEmpty()) {
+            page.column("*");
+        }
+        return page.column("COUNT(*) OVER() AS " + alias);
+    }
+
+    /**
+     * Removes LEFT JOINs whose table, or alias, is not referenced from the
+     * columns or any other clause.
+     */
+    private void pruneLeftJoins() {
+        for (int i = joins.size() - 1; i >= 0; i--) {
+            ExpressionAndSeparator join = joins.get(i);
+            if (!" LEFT JOIN ".equals(join.getSeparator())) {
+                continue;
+            }
+            Pattern reference = Pattern.compile("\\b" + Pattern.quote(tableAlias(join.getExpression())) + "\\.",
+                    Pattern.CASE_INSENSITIVE);
+            if (!isReferenced(reference, join)) {
+                joins.remove(i);
+                changed(Clause.JOIN);
+            }
+        }
+    }
+
+    private boolean isReferenced(Pattern reference, ExpressionAndSeparator exclude) {
+        List<Object> expressions = new ArrayList<>();
+        expressions.addAll(columns);
+        expressions.addAll(groupBys);
+        for (ExpressionAndSeparator e : joins) {
+            if (e != exclude) {
+                expressions.add(e.getExpression());
+            }
+        }
+        for (ExpressionAndSeparator e : wheres) {
+            expressions.add(e.getExpression());
+        }
+        for (ExpressionAndSeparator e : havings) {
+            expressions.add(e.getExpression());
+        }
+        for (Object expression : expressions) {
+            String sql = expression instanceof SelectBuilder
+                    ? ((SelectBuilder) expression).render() : expression.toString();
+            if (reference.matcher(sql).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the name by which a table in the from clause or a join is
+     * referenced, i.e. its alias if it has one, otherwise its name. For example
+     * "Department d ON ..." gives "d".
+     */
+    private static String tableAlias(String join) {
+        String[] tokens = join.trim().split("\\s+");
+        String alias = tokens[0];
+        for (int i = 1; i < tokens.length; i++) {
+            String token = tokens[i].toUpperCase(Locale.ROOT);
+            if ("ON".equals(token) || "USING".equals(token)) {
+                break;
+            }
+            if (!"AS".equals(token)) {
+                alias = tokens[i];
+            }
+        }
+        return alias;
+    }
+
+    /**
+     * Maps the name by which each table of the from clause and the joins is
+     * referenced to the table's name.
+     */
+    private Map<String, String> tableReferences() {
+        Map<String, String> references = new LinkedHashMap<>();
+        for (String table : tables) {
+            references.put(tableAlias(table), table.trim().split("\\s+")[0]);
+        }
+        for (ExpressionAndSeparator join : joins) {
+            String expression = join.getExpression();
+            references.put(tableAlias(expression), expression.trim().split("\\s+")[0]);
+        }
+        return references;
+    }
+
+    /**
+     * Returns the columns to select, with "*" expanded into the columns of the
+     * queried tables less their heavy columns. "*" is kept when any of those
+     * tables is not in the catalog.
+     */
+    private List<Object> expandColumns() {
+
+        Map<String, String> references = tableReferences();
+        boolean expandable = !references.isEmpty();
+        for (String table : references.values()) {
+            expandable &= catalog.hasTable(table);
+        }
+
+        List<Object> expanded = new ArrayList<>();
+        for (Object column : columns.isEmpty() ? Collections.<Object>singletonList("*") : columns) {
+            if ("*".equals(column) && expandable) {
+                for (Map.Entry<String, String> reference : references.entrySet()) {
+                    for (String name : catalog.getColumns(reference.getValue())) {
+                        if (!catalog.isHeavy(reference.getValue(), name)) {
+                            expanded.add(references.size() > 1 ? reference.getKey() + "." + name : name);
+                        }
+                    }
+                }
+            } else {
+                expanded.add(column);
+            }
+        }
+        return expanded;
+    }
+
+    /**
+     * Checks the columns and order by items against the catalog, if any.
+     *
+     * @throws IllegalArgumentException
+     *             if a plain column name is not a column of the queried
+     *             tables or, in the order by, an alias of the select list.
+     */
+    public void validate() {
+        validateColumns(columns);
+        validateOrderBys(orderBys);
+    }
+
+    private void validateColumns(List<?> columnsToCheck) {
+        if (catalog == null) {
+            return;
+        }
+        Map<String, String> references = tableReferences();
+        for (Object column : columnsToCheck) {
+            if (column instanceof String && !"*".equals(column)) {
+                validateColumn(stripPattern(COLUMN_ALIAS, (String) column), references,
+                        Collections.<String>emptySet());
+            }
+        }
+    }
+
+    private void validateOrderBys(List<String> orderBysToCheck) {
+        if (catalog == null) {
+            return;
+        }
+        Set<String> aliases = new HashSet<>();
+        for (Object column : columns) {
+            if (column instanceof SubSelectBuilder) {
+                aliases.add(((SubSelectBuilder) column).getAlias().toLowerCase(Locale.ROOT));
+            } else {
+                Matcher m = COLUMN_ALIAS.matcher(column.toString());
+                if (m.matches()) {
+                    aliases.add((m.group(2) != null ? m.group(2) : m.group(4)).toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        Map<String, String> references = tableReferences();
+        for (String orderBy : orderBysToCheck) {
+            validateColumn(stripPattern(ORDER_DIRECTION, orderBy.trim()), references, aliases);
+        }
+    }
+
+    /**
+     * Checks that a plain column name, optionally qualified, belongs to one of
+     * the queried tables. Expressions, positions, keywords such as
+     * CURRENT_DATE and columns of tables not in the catalog are not checked.
+     *
+     * @throws IllegalArgumentException
+     *             if the column is not found.
+     */
+    private void validateColumn(String expr, Map<String, String> references, Set<String> aliases) {
+
+        Matcher m = COLUMN_NAME.matcher(expr.trim());
+        if (!m.matches() || m.group(2).matches("\\d+")) {
+            return;
+        }
+        String qualifier = m.group(1);
+        String name = m.group(2);
+
+        if (qualifier != null) {
+            for (Map.Entry<String, String> reference : references.entrySet()) {
+                if (reference.getKey().equalsIgnoreCase(qualifier)) {
+                    String table = reference.getValue();
+                    if (catalog.hasTable(table) && catalog.getColumn(table, name) == null) {
+                        throw new IllegalArgumentException("Unknown column '" + expr + "' in table " + table);
+                    }
+                    return;
+                }
+            }
+            return;
+        }
+
+        if (aliases.contains(name.toLowerCase(Locale.ROOT)) || SQL_KEYWORDS.contains(name.toUpperCase(Locale.ROOT))) {
+            return;
+        }
+        for (String table : references.values()) {
+            if (!catalog.hasTable(table) || catalog.getColumn(table, name) != null) {
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Unknown column '" + expr + "' in tables " + references.values());
+    }
+
+    private static String stripPattern(Pattern pattern, String expr) {
+        Matcher m = pattern.matcher(expr);
+        if (!m.matches()) {
+            return expr;
+        }
+        return m.group(1) != null ? m.group(1) : m.group(3);
+    }
+
+    /**
+     * Returns the name of an index of the queried table holding every column
+     * the query refers to, so that the database can answer it from the index
+     * alone, or null if there is none. Only queries on a single table, without
+     * joins, unions or sub-select columns, are considered, and they need a
+     * catalog.
+     */
+    public String coveringIndex() {
+
+        if (catalog == null || tables.size() != 1 || !joins.isEmpty() || !unions.isEmpty()) {
+            return null;
+        }
+        String table = tables.get(0).trim().split("\\s+")[0];
+        if (!catalog.hasTable(table)) {
+            return null;
+        }
+
+        List<Object> expressions = new ArrayList<>(expandColumns());
+        expressions.addAll(groupBys);
+        expressions.addAll(orderBys);
+        for (ExpressionAndSeparator e : wheres) {
+            expressions.add(e.getExpression());
+        }
+        for (ExpressionAndSeparator e : havings) {
+            expressions.add(e.getExpression());
+        }
+
+        Set<String> referenced = new HashSet<>();
+        for (Object expression : expressions) {
+            if (expression instanceof SubSelectBuilder) {
+                return null;
+            }
+            Matcher m = IDENTIFIER.matcher(expression.toString());
+            while (m.find()) {
+                String column = catalog.getColumn(table, m.group());
+                if (column != null) {
+                    referenced.add(column.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+
+        for (Map.Entry<String, List<String>> index : catalog.getIndexes(table).entrySet()) {
+            Set<String> indexed = new HashSet<>();
+            for (String column : index.getValue()) {
+                indexed.add(column.toLowerCase(Locale.ROOT));
+            }
+            if (indexed.containsAll(referenced)) {
+                return index.getKey();
+            }
+        }
+        return null;
     }
 
     /**
@@ -231,11 +1012,13 @@ public class SelectBuilder {
      */
     public SelectBuilder union(SelectBuilder unionBuilder) {
         unions.add(unionBuilder);
+        changed(Clause.UNION);
         return this;
     }
 
-    private SelectBuilder where(String expr, String separator) {
-        wheres.add(new Condition(expr, separator));
+    private SelectBuilder where(Predicate predicate, String separator) {
+        wheres.add(new Condition(predicate.toSql(), separator, predicate));
+        changed(Clause.WHERE);
         return this;
     }
 
@@ -245,13 +1028,13 @@ public class SelectBuilder {
 
     public SelectBuilder andWhere(Predicate predicate) {
         predicate.init(this);
-        where(predicate.toSql(), " AND ");
+        where(predicate, " AND ");
         return this;
     }
 
     public SelectBuilder orWhere(Predicate predicate) {
         predicate.init(this);
-        where(predicate.toSql(), " OR ");
+        where(predicate, " OR ");
         return this;
     }
 
@@ -279,7 +1062,11 @@ public class SelectBuilder {
             } else {
                 sql.append(sep);
             }
-            sql.append(s);
+            if (s instanceof SelectBuilder) {
+                sql.append(((SelectBuilder) s).render());
+            } else {
+                sql.append(s);
+            }
             first = false;
         }
     }
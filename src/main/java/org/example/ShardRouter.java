@@ -0,0 +1,169 @@
+package org.example;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Works out which shards can hold the rows matched by a {@link SelectBuilder},
+ * from the predicates its where clause places on the shard key.
+ * <p>
+ * Only conditions joined with AND at the top level of the where clause are
+ * considered, and only those built by {@link Predicates#eq(String, Object)},
+ * {@link Predicates#in(String, List)} and
+ * {@link Predicates#between(String, Object, Object)}. A where clause with an
+ * OR, or without such a condition on the shard key, routes to every shard, as
+ * does a query with unions.
+ */
+public class ShardRouter {
+
+    /**
+     * Largest integer range of a BETWEEN that is expanded into its values to
+     * route it; wider ranges go to every shard.
+     */
+    private static final int MAX_RANGE_VALUES = 1024;
+
+    /**
+     * Maps a shard key value to a shard.
+     */
+    public interface ShardFunction {
+
+        /**
+         * Returns the index, from 0 to shardCount - 1, of the shard owning the
+         * given shard key value. Values enumerated from a BETWEEN range are
+         * passed as Long.
+         */
+        public int shardFor(Object key, int shardCount);
+    }
+
+    /**
+     * Assigns integral keys to shard {@code key mod shardCount} and any other
+     * key by its hash code.
+     */
+    public static final ShardFunction MODULO = new ShardFunction() {
+        public int shardFor(Object key, int shardCount) {
+            if (isIntegral(key)) {
+                return (int) Math.floorMod(((Number) key).longValue(), (long) shardCount);
+            }
+            return Math.floorMod(key.hashCode(), shardCount);
+        }
+    };
+
+    private final String shardKey;
+
+    private final int shardCount;
+
+    private final ShardFunction shardFunction;
+
+    public ShardRouter(String shardKey, int shardCount) {
+        this(shardKey, shardCount, MODULO);
+    }
+
+    /**
+     * @param shardKey
+     *            Column the tables are sharded by. Where expressions match it
+     *            with or without a table qualifier, ignoring case.
+     * @param shardCount
+     *            Number of shards.
+     * @param shardFunction
+     *            Maps a shard key value to its shard.
+     */
+    public ShardRouter(String shardKey, int shardCount, ShardFunction shardFunction) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        this.shardKey = shardKey.toLowerCase(Locale.ROOT);
+        this.shardCount = shardCount;
+        this.shardFunction = shardFunction;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Returns the indexes, in ascending order, of the shards the query has to
+     * run on. The set is empty when the conditions on the shard key can't all
+     * hold at once.
+     */
+    public Set<Integer> route(SelectBuilder selectBuilder) {
+
+        Set<Integer> shards = allShards();
+
+        // union queries have their own where clauses
+        if (!selectBuilder.getUnions().isEmpty()) {
+            return shards;
+        }
+
+        List<ExpressionAndSeparator> wheres = selectBuilder.getWheres();
+        for (int i = 1; i < wheres.size(); i++) {
+            if (" OR ".equals(wheres.get(i).getSeparator())) {
+                return allShards();
+            }
+        }
+
+        for (ExpressionAndSeparator where : wheres) {
+            Predicate predicate = where instanceof Condition ? ((Condition) where).getPredicate() : null;
+            if (predicate instanceof RoutablePredicate && isShardKey(((RoutablePredicate) predicate).getExpression())) {
+                Set<Integer> matching = shardsFor((RoutablePredicate) predicate);
+                if (matching != null) {
+                    shards.retainAll(matching);
+                }
+            }
+        }
+
+        return shards;
+    }
+
+    /**
+     * Returns the shards a predicate on the shard key restricts the query to,
+     * or null if it can't be routed.
+     */
+    private Set<Integer> shardsFor(RoutablePredicate predicate) {
+
+        Set<Integer> shards = new TreeSet<>();
+
+        if (predicate.getValues() != null) {
+            for (Object value : predicate.getValues()) {
+                if (value != null) {
+                    shards.add(shardFunction.shardFor(value, shardCount));
+                }
+            }
+            return shards;
+        }
+
+        Object start = predicate.getStart();
+        Object end = predicate.getEnd();
+        if (!isIntegral(start) || !isIntegral(end)) {
+            return null;
+        }
+        long first = ((Number) start).longValue();
+        long last = ((Number) end).longValue();
+        if (last > first && (last - first < 0 || last - first >= MAX_RANGE_VALUES)) {
+            return null;
+        }
+        for (long value = first; value <= last && shards.size() < shardCount; value++) {
+            shards.add(shardFunction.shardFor(value, shardCount));
+        }
+        return shards;
+    }
+
+    private boolean isShardKey(String expr) {
+        String name = expr.trim().toLowerCase(Locale.ROOT);
+        return name.equals(shardKey) || name.endsWith("." + shardKey);
+    }
+
+    private Set<Integer> allShards() {
+        Set<Integer> shards = new TreeSet<>();
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(i);
+        }
+        return shards;
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte;
+    }
+}
@@ -0,0 +1,368 @@
+package org.example;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+/**
+ * Runs a {@link SelectBuilder} against horizontally sharded databases. The
+ * query only goes to the shards its {@link ShardRouter} picks; when that is
+ * more than one, the shards are queried in parallel and their rows merged.
+ * <p>
+ * Merged rows keep the query's order by, through a k-way merge of the rows
+ * each shard has already sorted, and its limit and offset, which are applied
+ * to the merged rows. Every order by item must therefore be a column of the
+ * result, named as in the column list or by position, and sort the same way
+ * in Java as in the database.
+ * <p>
+ * Distinct, group by, having and aggregate functions would only apply within
+ * each shard, giving duplicate rows and partial aggregates, so queries using
+ * them are refused unless they go to a single shard.
+ * <p>
+ * Nulls are placed as the order by item says with NULLS FIRST or NULLS LAST.
+ * Otherwise they sort as the databases do by default: lower than any value,
+ * as in MySQL, SQL Server and H2, or, for databases created with
+ * {@code nullsHigh}, higher than any value, as in PostgreSQL and Oracle.
+ */
+public class ShardedQueryExecutor {
+
+    /**
+     * A call of an aggregate function.
+     */
+    private static final Pattern AGGREGATE = Pattern.compile("(?i)\\b(?:count|sum|avg|min|max)\\s*\\(");
+
+    private final List<DataSource> shards;
+
+    private final ShardRouter router;
+
+    private final ExecutorService executor;
+
+    private final boolean nullsHigh;
+
+    /**
+     * Creates an executor for databases that sort nulls lower than any value.
+     *
+     * @param shards
+     *            Data sources of the shards, indexed as by the router.
+     * @param router
+     *            Picks the shards a query has to run on.
+     * @param executor
+     *            Runs the queries when more than one shard is involved.
+     */
+    public ShardedQueryExecutor(List<DataSource> shards, ShardRouter router, ExecutorService executor) {
+        this(shards, router, executor, false);
+    }
+
+    /**
+     * @param shards
+     *            Data sources of the shards, indexed as by the router.
+     * @param router
+     *            Picks the shards a query has to run on.
+     * @param executor
+     *            Runs the queries when more than one shard is involved.
+     * @param nullsHigh
+     *            Whether the databases sort nulls higher than any value, as
+     *            PostgreSQL and Oracle do, rather than lower.
+     */
+    public ShardedQueryExecutor(List<DataSource> shards, ShardRouter router, ExecutorService executor,
+                                boolean nullsHigh) {
+        if (shards.size() != router.getShardCount()) {
+            throw new IllegalArgumentException("Expected " + router.getShardCount() + " shards but got " + shards.size());
+        }
+        this.shards = new ArrayList<>(shards);
+        this.router = router;
+        this.executor = executor;
+        this.nullsHigh = nullsHigh;
+    }
+
+    /**
+     * Runs the query and returns its rows, each a map from column label to
+     * value in column order.
+     *
+     * @throws IllegalStateException
+     *             if the query goes to several shards but uses distinct,
+     *             group by, having or aggregate functions, whose results
+     *             can't be merged.
+     * <p>
+     * The SQL is generated on the calling thread, so that an enabled
+     * {@link SqlShapeAuditor} records the query once, at its caller, however
+     * many shards it runs on.
+     */
+    public List<Map<String, Object>> query(SelectBuilder selectBuilder) throws SQLException {
+
+        String sql = selectBuilder.toString();
+        Set<Integer> targets = router.route(selectBuilder);
+
+        if (targets.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        if (targets.size() == 1) {
+            return query(shards.get(targets.iterator().next()), sql, selectBuilder.getParameters());
+        }
+
+        checkMergeable(selectBuilder);
+
+        int limit = selectBuilder.getLimit();
+        int offset = selectBuilder.getOffset();
+
+        // each shard returns every row that could make it to the global page
+        SelectBuilder shardQuery = new SelectBuilder(selectBuilder);
+        if (limit > 0) {
+            shardQuery.limit(limit + offset, 0);
+        }
+        final String shardSql = shardQuery.render();
+        final List<Object> shardParameters = shardQuery.getParameters();
+
+        List<Future<List<Map<String, Object>>>> futures = new ArrayList<>();
+        for (Integer target : targets) {
+            final DataSource shard = shards.get(target);
+            futures.add(executor.submit(new Callable<List<Map<String, Object>>>() {
+                public List<Map<String, Object>> call() throws SQLException {
+                    return query(shard, shardSql, shardParameters);
+                }
+            }));
+        }
+
+        List<List<Map<String, Object>>> results = new ArrayList<>();
+        try {
+            for (Future<List<Map<String, Object>>> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(futures);
+            throw new SQLException("Interrupted while querying shards", e);
+        } catch (ExecutionException e) {
+            cancel(futures);
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Shard query failed", e.getCause());
+        }
+
+        return merge(results, selectBuilder.getOrderBys(), limit, offset);
+    }
+
+    private static void checkMergeable(SelectBuilder selectBuilder) {
+        String reason = null;
+        if (selectBuilder.isDistinct()) {
+            reason = "distinct";
+        } else if (!selectBuilder.getGroupBys().isEmpty()) {
+            reason = "group by";
+        } else if (!selectBuilder.getHavings().isEmpty()) {
+            reason = "having";
+        } else {
+            for (Object column : selectBuilder.getColumns()) {
+                if (column instanceof String && AGGREGATE.matcher((String) column).find()) {
+                    reason = "aggregate " + column;
+                    break;
+                }
+            }
+        }
+        if (reason != null) {
+            throw new IllegalStateException("Cannot merge results of several shards for a query with " + reason);
+        }
+    }
+
+    private static void cancel(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private static List<Map<String, Object>> query(DataSource shard, String sql, List<Object> parameters)
+            throws SQLException {
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+
+        try (Connection connection = shard.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+
+            int index = 1;
+            for (Object parameter : parameters) {
+                statement.setObject(index++, parameter);
+            }
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                ResultSetMetaData metaData = resultSet.getMetaData();
+                int columnCount = metaData.getColumnCount();
+                while (resultSet.next()) {
+                    Map<String, Object> row = new LinkedHashMap<>();
+                    for (int i = 1; i <= columnCount; i++) {
+                        row.put(metaData.getColumnLabel(i), resultSet.getObject(i));
+                    }
+                    rows.add(row);
+                }
+            }
+        }
+
+        return rows;
+    }
+
+    /**
+     * Merges the rows of several shards, then skips offset rows and keeps at
+     * most limit rows. Without an order by, the rows of each shard follow
+     * those of the previous one.
+     */
+    private List<Map<String, Object>> merge(List<List<Map<String, Object>>> results,
+                                            List<String> orderBys, int limit, int offset) {
+
+        List<Map<String, Object>> merged = new ArrayList<>();
+        int wanted = limit > 0 ? limit + offset : Integer.MAX_VALUE;
+
+        if (orderBys.isEmpty()) {
+            for (List<Map<String, Object>> rows : results) {
+                for (Map<String, Object> row : rows) {
+                    if (merged.size() == wanted) {
+                        break;
+                    }
+                    merged.add(row);
+                }
+            }
+        } else {
+            final Comparator<Map<String, Object>> order = comparator(results, orderBys);
+
+            // heads of each shard's rows, as {shard, position} pairs
+            final List<List<Map<String, Object>>> shardRows = results;
+            PriorityQueue<int[]> heads = new PriorityQueue<>(results.size(), new Comparator<int[]>() {
+                public int compare(int[] a, int[] b) {
+                    return order.compare(shardRows.get(a[0]).get(a[1]), shardRows.get(b[0]).get(b[1]));
+                }
+            });
+            for (int i = 0; i < results.size(); i++) {
+                if (!results.get(i).isEmpty()) {
+                    heads.add(new int[] {i, 0});
+                }
+            }
+            while (!heads.isEmpty() && merged.size() < wanted) {
+                int[] head = heads.poll();
+                List<Map<String, Object>> rows = results.get(head[0]);
+                merged.add(rows.get(head[1]));
+                if (++head[1] < rows.size()) {
+                    heads.add(head);
+                }
+            }
+        }
+
+        if (offset >= merged.size()) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(merged.subList(offset, merged.size()));
+    }
+
+    /**
+     * Builds a comparator of rows matching the order by items.
+     */
+    private Comparator<Map<String, Object>> comparator(List<List<Map<String, Object>>> results,
+                                                       List<String> orderBys) {
+
+        List<String> labels = null;
+        for (List<Map<String, Object>> rows : results) {
+            if (!rows.isEmpty()) {
+                labels = new ArrayList<>(rows.get(0).keySet());
+                break;
+            }
+        }
+
+        final List<String> keys = new ArrayList<>();
+        final List<Boolean> ascending = new ArrayList<>();
+        final List<Boolean> nullsFirst = new ArrayList<>();
+
+        if (labels == null) {
+            // no rows to merge
+            return new Comparator<Map<String, Object>>() {
+                public int compare(Map<String, Object> a, Map<String, Object> b) {
+                    return 0;
+                }
+            };
+        }
+
+        for (String orderBy : orderBys) {
+            String expr = orderBy.trim();
+            Boolean first = null;
+            String upper = expr.toUpperCase(Locale.ROOT);
+            if (upper.endsWith(" NULLS FIRST")) {
+                first = true;
+                expr = expr.substring(0, expr.length() - 12).trim();
+            } else if (upper.endsWith(" NULLS LAST")) {
+                first = false;
+                expr = expr.substring(0, expr.length() - 11).trim();
+            }
+            boolean asc = true;
+            upper = expr.toUpperCase(Locale.ROOT);
+            if (upper.endsWith(" DESC")) {
+                asc = false;
+                expr = expr.substring(0, expr.length() - 5).trim();
+            } else if (upper.endsWith(" ASC")) {
+                expr = expr.substring(0, expr.length() - 4).trim();
+            }
+            keys.add(resolveLabel(expr, labels, orderBy));
+            ascending.add(asc);
+            // by default nulls come first when they sort low and the order is ascending, or both are reversed
+            nullsFirst.add(first != null ? first : asc != nullsHigh);
+        }
+
+        return new Comparator<Map<String, Object>>() {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            public int compare(Map<String, Object> a, Map<String, Object> b) {
+                for (int i = 0; i < keys.size(); i++) {
+                    Object x = a.get(keys.get(i));
+                    Object y = b.get(keys.get(i));
+                    if (x == null || y == null) {
+                        if (x != y) {
+                            return (x == null) == nullsFirst.get(i) ? -1 : 1;
+                        }
+                        continue;
+                    }
+                    int result = ((Comparable) x).compareTo(y);
+                    if (result != 0) {
+                        return ascending.get(i) ? result : -result;
+                    }
+                }
+                return 0;
+            }
+        };
+    }
+
+    /**
+     * Finds the result column an order by expression refers to, either by its
+     * position or by its name, ignoring any table qualifier.
+     */
+    private static String resolveLabel(String expr, List<String> labels, String orderBy) {
+
+        if (expr.matches("\\d+")) {
+            int position = Integer.parseInt(expr);
+            if (position >= 1 && position <= labels.size()) {
+                return labels.get(position - 1);
+            }
+        } else {
+            String name = expr.substring(expr.lastIndexOf('.') + 1);
+            for (String label : labels) {
+                if (label.equalsIgnoreCase(name) || label.equalsIgnoreCase(expr)) {
+                    return label;
+                }
+            }
+        }
+
+        throw new IllegalStateException("Cannot merge shard results on order by '" + orderBy
+                + "', it is not a column of the result");
+    }
+}
@@ -0,0 +1,484 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Records the SQL produced by {@link SelectBuilder#toString()} while enabled,
+ * to find the code creating many distinct statements, each of which costs a
+ * prepared statement and a plan cache entry in the database.
+ * <p>
+ * Distinct statements are counted with HyperLogLog sketches, overall and per
+ * call site, so memory stays bounded however many statements are seen. Up to
+ * {@code maxCallSites} call sites are tracked, as in the Space-Saving
+ * algorithm: a new call site replaces the least active one tracked, and
+ * starts from that one's number of calls, so that a busy call site showing up
+ * late still makes it to the top. Statements with literals embedded in them,
+ * which should usually be parameters, are counted per call site too.
+ * <p>
+ * Finding the call site takes a stack trace, so an auditor is meant for
+ * tests and diagnostics rather than to stay enabled in production.
+ */
+public class SqlShapeAuditor {
+
+    /**
+     * Location under which statements are counted when no caller outside of
+     * the builder classes is found.
+     */
+    public static final String OTHER_CALL_SITES = "(other)";
+
+    /**
+     * Where a constant appears in a statement, as far as it matters to
+     * {@link #hasLiteral(String)}.
+     */
+    private static final int OTHER = 0;
+
+    private static final int SELECT_LIST = 1;
+
+    private static final int ORDER_BY = 2;
+
+    /**
+     * Keywords ending a select list or an order by.
+     */
+    private static final Set<String> CLAUSE_KEYWORDS = new HashSet<>(Arrays.asList(
+            "FROM", "WHERE", "JOIN", "ON", "GROUP", "HAVING", "LIMIT", "OFFSET", "FETCH", "UNION", "INTERSECT",
+            "EXCEPT"));
+
+    private static volatile SqlShapeAuditor active;
+
+    private final int maxCallSites;
+
+    private final HyperLogLog shapes = new HyperLogLog(14);
+
+    private final AtomicLong calls = new AtomicLong();
+
+    private final ConcurrentMap<String, CallSiteStats> callSites = new ConcurrentHashMap<>();
+
+    public SqlShapeAuditor() {
+        this(1000);
+    }
+
+    public SqlShapeAuditor(int maxCallSites) {
+        this.maxCallSites = maxCallSites;
+    }
+
+    /**
+     * Starts recording the SQL of every builder with this auditor, replacing
+     * any auditor enabled before.
+     */
+    public SqlShapeAuditor enable() {
+        active = this;
+        return this;
+    }
+
+    /**
+     * Stops recording SQL.
+     */
+    public static void disable() {
+        active = null;
+    }
+
+    /**
+     * Called by {@link SelectBuilder#toString()} with the generated SQL.
+     */
+    static void audit(String sql) {
+        SqlShapeAuditor auditor = active;
+        if (auditor != null) {
+            auditor.record(sql, callSite());
+        }
+    }
+
+    /**
+     * Records a statement generated at the given call site.
+     */
+    public void record(String sql, String callSite) {
+
+        long hash = fingerprint(sql);
+        calls.incrementAndGet();
+        shapes.add(hash);
+
+        CallSiteStats stats = callSites.get(callSite);
+        if (stats == null) {
+            stats = track(callSite);
+        }
+        stats.record(sql, hash);
+    }
+
+    /**
+     * Starts tracking a call site, replacing the one with the fewest calls
+     * if as many as allowed are tracked. Calls recorded concurrently on the
+     * replaced call site are lost.
+     */
+    private synchronized CallSiteStats track(String callSite) {
+
+        CallSiteStats stats = callSites.get(callSite);
+        if (stats != null) {
+            return stats;
+        }
+
+        long initialCalls = 0;
+        if (callSites.size() >= maxCallSites) {
+            CallSiteStats least = null;
+            for (CallSiteStats candidate : callSites.values()) {
+                if (least == null || candidate.weight() < least.weight()) {
+                    least = candidate;
+                }
+            }
+            callSites.remove(least.location);
+            initialCalls = least.weight();
+        }
+
+        stats = new CallSiteStats(callSite, initialCalls);
+        callSites.put(callSite, stats);
+        return stats;
+    }
+
+    /**
+     * Returns the estimated number of distinct statements recorded.
+     */
+    public long getDistinctShapes() {
+        return shapes.estimate();
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Returns the call sites producing the most distinct statements, most
+     * first.
+     */
+    public List<CallSite> topCallSites(int count) {
+        List<CallSite> sites = new ArrayList<>();
+        for (CallSiteStats stats : callSites.values()) {
+            sites.add(stats.snapshot());
+        }
+        Collections.sort(sites, new Comparator<CallSite>() {
+            public int compare(CallSite a, CallSite b) {
+                if (a.getDistinctShapes() != b.getDistinctShapes()) {
+                    return a.getDistinctShapes() > b.getDistinctShapes() ? -1 : 1;
+                }
+                return Long.compare(b.getCalls(), a.getCalls());
+            }
+        });
+        return sites.size() > count ? new ArrayList<>(sites.subList(0, count)) : sites;
+    }
+
+    /**
+     * Returns a report of the call sites producing the most distinct
+     * statements, one per line.
+     */
+    public String report(int count) {
+        StringBuilder sb = new StringBuilder()
+                .append(getCalls()).append(" statements, about ")
+                .append(getDistinctShapes()).append(" distinct");
+        for (CallSite site : topCallSites(count)) {
+            sb.append(System.lineSeparator()).append(site);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns whether the SQL has a string or numeric literal in it, other
+     * than constants in a select list, such as {@code SELECT 1} or
+     * {@code COUNT(1)}, and positions in an order by, which don't change
+     * from one statement to the next.
+     */
+    static boolean hasLiteral(String sql) {
+
+        // where constants appear, per parenthesis depth
+        int[] states = new int[8];
+        int depth = 0;
+
+        int length = sql.length();
+        for (int i = 0; i < length; i++) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                // skip to the closing quote, a doubled quote being part of the literal
+                i++;
+                while (i < length && (sql.charAt(i) != '\'' || i + 1 < length && sql.charAt(i + 1) == '\'')) {
+                    i += sql.charAt(i) == '\'' ? 2 : 1;
+                }
+                if (states[depth] != SELECT_LIST) {
+                    return true;
+                }
+            } else if (c == '(') {
+                if (++depth == states.length) {
+                    states = Arrays.copyOf(states, depth * 2);
+                }
+                states[depth] = states[depth - 1] == SELECT_LIST ? SELECT_LIST : OTHER;
+            } else if (c == ')') {
+                depth = Math.max(depth - 1, 0);
+            } else if (Character.isLetter(c) || c == '_') {
+                int start = i;
+                while (i + 1 < length && (Character.isLetterOrDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '_'
+                        || sql.charAt(i + 1) == '$')) {
+                    i++;
+                }
+                String word = sql.substring(start, i + 1).toUpperCase(Locale.ROOT);
+                if (word.equals("SELECT")) {
+                    states[depth] = SELECT_LIST;
+                } else if (word.equals("ORDER")) {
+                    states[depth] = ORDER_BY;
+                } else if (CLAUSE_KEYWORDS.contains(word)) {
+                    states[depth] = OTHER;
+                }
+            } else if (Character.isDigit(c)) {
+                int start = i;
+                while (i + 1 < length && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')) {
+                    i++;
+                }
+                boolean constant = states[depth] == SELECT_LIST
+                        || states[depth] == ORDER_BY && isOrderByPosition(sql, start, i + 1);
+                if (!constant && (start == 0 || sql.charAt(start - 1) != '.')) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the number between start and end is an order by item
+     * of its own, as opposed to part of an expression.
+     */
+    private static boolean isOrderByPosition(String sql, int start, int end) {
+        int before = start - 1;
+        while (before >= 0 && Character.isWhitespace(sql.charAt(before))) {
+            before--;
+        }
+        boolean itemStart = before >= 0 && (sql.charAt(before) == ','
+                || before >= 1 && sql.regionMatches(true, before - 1, "BY", 0, 2));
+        int after = end;
+        while (after < sql.length() && Character.isWhitespace(sql.charAt(after))) {
+            after++;
+        }
+        boolean itemEnd = after == sql.length() || sql.charAt(after) == ',' || sql.charAt(after) == ')'
+                || Character.isLetter(sql.charAt(after));
+        return itemStart && itemEnd;
+    }
+
+    /**
+     * Returns a 64 bit hash of the SQL, FNV-1a mixed by the MurmurHash3
+     * finalizer so that every bit is usable by the sketches.
+     */
+    static long fingerprint(CharSequence sql) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < sql.length(); i++) {
+            hash ^= sql.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Returns the first caller on the stack outside of the builder classes
+     * and the classes running their queries.
+     */
+    private static String callSite() {
+        for (StackTraceElement element : new Throwable().getStackTrace()) {
+            String className = element.getClassName();
+            int nested = className.indexOf('$');
+            if (nested >= 0) {
+                className = className.substring(0, nested);
+            }
+            if (!className.equals(SelectBuilder.class.getName())
+                    && !className.equals(SubSelectBuilder.class.getName())
+                    && !className.equals(SqlShapeAuditor.class.getName())
+                    && !className.equals(Predicates.class.getName())
+                    && !className.equals(ShardedQueryExecutor.class.getName())
+                    && !className.startsWith("java.")) {
+                return element.toString();
+            }
+        }
+        return OTHER_CALL_SITES;
+    }
+
+    /**
+     * What an auditor recorded for a call site.
+     */
+    public static class CallSite {
+
+        private final String location;
+
+        private final long calls;
+
+        private final long distinctShapes;
+
+        private final long literalCalls;
+
+        private final String literalExample;
+
+        private CallSite(String location, long calls, long distinctShapes, long literalCalls, String literalExample) {
+            this.location = location;
+            this.calls = calls;
+            this.distinctShapes = distinctShapes;
+            this.literalCalls = literalCalls;
+            this.literalExample = literalExample;
+        }
+
+        /**
+         * Returns the stack frame that generated the SQL.
+         */
+        public String getLocation() {
+            return location;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * Returns the estimated number of distinct statements generated here.
+         */
+        public long getDistinctShapes() {
+            return distinctShapes;
+        }
+
+        /**
+         * Returns how many of the statements generated here had a literal in
+         * them.
+         */
+        public long getLiteralCalls() {
+            return literalCalls;
+        }
+
+        /**
+         * Returns the first statement with a literal generated here, or null.
+         */
+        public String getLiteralExample() {
+            return literalExample;
+        }
+
+        @Override
+        public String toString() {
+            String s = location + ": " + calls + " statements, about " + distinctShapes + " distinct";
+            if (literalCalls > 0) {
+                s += ", " + literalCalls + " with literals, e.g. " + literalExample;
+            }
+            return s;
+        }
+    }
+
+    private static class CallSiteStats {
+
+        private final String location;
+
+        /**
+         * The calls of the call site this one replaced, which may have been
+         * this one's, as Space-Saving assumes.
+         */
+        private final long initialCalls;
+
+        private final HyperLogLog shapes = new HyperLogLog(10);
+
+        private final AtomicLong calls = new AtomicLong();
+
+        private final AtomicLong literalCalls = new AtomicLong();
+
+        private final AtomicReference<String> literalExample = new AtomicReference<>();
+
+        /**
+         * Hash of the last statement checked for literals, to skip checking
+         * the same statement over and over.
+         */
+        private volatile long lastHash;
+
+        private volatile boolean lastHasLiteral;
+
+        private CallSiteStats(String location, long initialCalls) {
+            this.location = location;
+            this.initialCalls = initialCalls;
+        }
+
+        /**
+         * Returns the number of calls by which call sites compete to stay
+         * tracked, an overestimate of the call site's calls.
+         */
+        private long weight() {
+            return initialCalls + calls.get();
+        }
+
+        private void record(String sql, long hash) {
+            calls.incrementAndGet();
+            shapes.add(hash);
+
+            boolean literal;
+            if (hash == lastHash) {
+                literal = lastHasLiteral;
+            } else {
+                literal = hasLiteral(sql);
+                lastHasLiteral = literal;
+                lastHash = hash;
+            }
+            if (literal) {
+                literalCalls.incrementAndGet();
+                literalExample.compareAndSet(null, sql);
+            }
+        }
+
+        private CallSite snapshot() {
+            return new CallSite(location, calls.get(), shapes.estimate(), literalCalls.get(), literalExample.get());
+        }
+    }
+
+    /**
+     * HyperLogLog sketch estimating the number of distinct hashes added to it,
+     * with a standard error of about 1.04 / sqrt(2^precision).
+     */
+    static class HyperLogLog {
+
+        private final int precision;
+
+        private final AtomicIntegerArray registers;
+
+        HyperLogLog(int precision) {
+            this.precision = precision;
+            this.registers = new AtomicIntegerArray(1 << precision);
+        }
+
+        void add(long hash) {
+            int index = (int) (hash >>> (64 - precision));
+            int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+            int current = registers.get(index);
+            while (rank > current && !registers.compareAndSet(index, current, rank)) {
+                current = registers.get(index);
+            }
+        }
+
+        long estimate() {
+            int m = registers.length();
+            double sum = 0;
+            int zeros = 0;
+            for (int i = 0; i < m; i++) {
+                int register = registers.get(i);
+                sum += 1.0 / (1L << register);
+                if (register == 0) {
+                    zeros++;
+                }
+            }
+            double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+            if (estimate <= 2.5 * m && zeros > 0) {
+                // linear counting is more accurate for small counts
+                estimate = m * Math.log((double) m / zeros);
+            }
+            return Math.round(estimate);
+        }
+    }
+}
@@ -13,10 +13,14 @@ public class SubSelectBuilder extends SelectBuilder {
         this.alias = other.alias;
     }
 
+    String getAlias() {
+        return alias;
+    }
+
     @Override
-    public String toString() {
+    String render() {
         return "(" +
-                super.toString() +
+                super.render() +
                 ") as " +
                 alias;
     }
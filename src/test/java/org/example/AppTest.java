@@ -2,11 +2,17 @@ package org.example;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 /**
  * Unit test for simple App.
@@ -226,4 +232,282 @@ public class AppTest
         assertEquals("SELECT a, b FROM Foo WHERE a > ? ORDER BY 1 UNION SELECT c, d FROM Bar", sb.toString());
         assertEquals(Arrays.asList(10), sb.getParameters());
     }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSubSelectBuilderInPredicate() {
+        SubSelectBuilder orders = new SubSelectBuilder("order_count");
+        orders.column("1").from("Orders o").where(Predicates.eqColumn("o.customer_id", "c.id"));
+        Predicates.exists(orders);
+    }
+
+    @Test
+    public void testSubSelectPredicates() {
+
+        SelectBuilder orders = new SelectBuilder("Orders o")
+                .column("1")
+                .where(Predicates.eqColumn("o.customer_id", "c.id"))
+                .andWhere(Predicates.gt("o.total", 100));
+
+        SelectBuilder sb = new SelectBuilder("Customers c")
+                .where(Predicates.eq("c.country", "India"))
+                .andWhere(Predicates.exists(orders))
+                .andWhere(Predicates.lt("c.age", 40));
+        assertEquals("SELECT * FROM Customers c WHERE c.country = ?" +
+                " AND exists (SELECT 1 FROM Orders o WHERE o.customer_id = c.id AND o.total > ?)" +
+                " AND c.age < ?", sb.toString());
+        assertEquals(Arrays.asList("India", 100, 40), sb.getParameters());
+
+        sb = new SelectBuilder("Customers c").where(Predicates.notExists(
+                new SelectBuilder("Orders o").column("1")));
+        assertEquals("SELECT * FROM Customers c WHERE not exists (SELECT 1 FROM Orders o)", sb.toString());
+        assertEquals(Collections.emptyList(), sb.getParameters());
+
+        sb = new SelectBuilder("Customers").where(Predicates.inSubSelect("id",
+                new SelectBuilder("Orders").column("customer_id").where(Predicates.gte("total", 500))))
+                .orWhere(Predicates.eq("vip", true));
+        assertEquals("SELECT * FROM Customers WHERE id in (SELECT customer_id FROM Orders WHERE total >= ?)" +
+                " OR vip = ?", sb.toString());
+        assertEquals(Arrays.asList(500, true), sb.getParameters());
+
+        sb = new SelectBuilder("Employee e").where(Predicates.gtSubSelect("e.salary",
+                new SelectBuilder("Employee x").column("AVG(x.salary)")
+                        .where(Predicates.eq("x.dept", "Sales"))));
+        assertEquals("SELECT * FROM Employee e WHERE e.salary > (SELECT AVG(x.salary) FROM Employee x" +
+                " WHERE x.dept = ?)", sb.toString());
+        assertEquals(Arrays.asList("Sales"), sb.getParameters());
+
+        // a null value is still bound as a parameter, not taken for a subquery
+        sb = new SelectBuilder("Employee").where(Predicates.eq("manager_id", null));
+        assertEquals("SELECT * FROM Employee WHERE manager_id = ?", sb.toString());
+        assertEquals(Collections.singletonList(null), sb.getParameters());
+    }
+
+    @Test
+    public void testCountQuery() {
+
+        SelectBuilder sb = new SelectBuilder("Employee e")
+                .column("e.name", "d.name")
+                .leftJoin("Department d ON e.dept_id = d.id")
+                .leftJoin("Address a ON e.address_id = a.id")
+                .where(Predicates.like("e.name", "Bob%"))
+                .andWhere(Predicates.eq("a.city", "Pune"))
+                .orderBy("e.name")
+                .limit(10, 20);
+
+        SelectBuilder count = sb.toCountQuery();
+        assertEquals("SELECT COUNT(*) FROM Employee e" +
+                " LEFT JOIN Department d ON e.dept_id = d.id" +
+                " LEFT JOIN Address a ON e.address_id = a.id" +
+                " WHERE e.name like ? AND a.city = ?", count.toString());
+        assertEquals(Arrays.asList("Bob%", "Pune"), count.getParameters());
+
+        count = sb.toCountQuery(true);
+        assertEquals("SELECT COUNT(*) FROM Employee e" +
+                " LEFT JOIN Address a ON e.address_id = a.id" +
+                " WHERE e.name like ? AND a.city = ?", count.toString());
+
+        // the original builder is left untouched
+        assertEquals("SELECT e.name, d.name FROM Employee e" +
+                " LEFT JOIN Department d ON e.dept_id = d.id" +
+                " LEFT JOIN Address a ON e.address_id = a.id" +
+                " WHERE e.name like ? AND a.city = ? ORDER BY e.name LIMIT 10, 20", sb.toString());
+
+        sb = new SelectBuilder("Customers").column("Country", true)
+                .where(Predicates.gt("age", 18))
+                .orderBy("Country")
+                .limit(5);
+        count = sb.toCountQuery();
+        assertEquals("SELECT COUNT(*) FROM (SELECT Country FROM Customers WHERE age > ?" +
+                " GROUP BY Country) count_query", count.toString());
+        assertEquals(Arrays.asList(18), count.getParameters());
+
+        sb = new SelectBuilder("Customers").distinct().column("Country");
+        assertEquals("SELECT COUNT(*) FROM (SELECT distinct Country FROM Customers) count_query",
+                sb.toCountQuery().toString());
+    }
+
+    @Test
+    public void testWithTotalCount() {
+
+        SelectBuilder sb = new SelectBuilder("Employee")
+                .where(Predicates.gt("age", 30))
+                .orderBy("name")
+                .limit(10);
+
+        SelectBuilder page = sb.withTotalCount("total");
+        assertEquals("SELECT *, COUNT(*) OVER() AS total FROM Employee WHERE age > ? ORDER BY name LIMIT 10",
+                page.toString());
+        assertEquals(Arrays.asList(30), page.getParameters());
+        assertEquals("SELECT * FROM Employee WHERE age > ? ORDER BY name LIMIT 10", sb.toString());
+
+        page = new SelectBuilder("Employee").column("name").withTotalCount("total");
+        assertEquals("SELECT name, COUNT(*) OVER() AS total FROM Employee", page.toString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWithTotalCountDistinctException() {
+        new SelectBuilder("Employee").distinct().column("name").withTotalCount("total");
+    }
+
+    @Test
+    public void testLimitDialects() {
+
+        SelectBuilder sb = new SelectBuilder("test_table").limit(10, 4);
+
+        assertEquals("SELECT * FROM test_table LIMIT 4, 10", sb.dialect(Dialect.MYSQL).toString());
+        assertEquals("SELECT * FROM test_table LIMIT 10 OFFSET 4", sb.dialect(Dialect.POSTGRESQL).toString());
+        assertEquals("SELECT * FROM test_table OFFSET 4 ROWS FETCH NEXT 10 ROWS ONLY",
+                sb.dialect(Dialect.SQL_SERVER).toString());
+
+        sb = new SelectBuilder("test_table").limit(10).dialect(Dialect.POSTGRESQL);
+        assertEquals("SELECT * FROM test_table LIMIT 10", sb.toString());
+    }
+
+    @Test
+    public void testBindLimit() {
+
+        SelectBuilder sb = new SelectBuilder("Employee")
+                .where(Predicates.gt("age", 30))
+                .orderBy("name")
+                .bindLimit()
+                .limit(10);
+
+        assertEquals("SELECT * FROM Employee WHERE age > ? ORDER BY name LIMIT ?, ?", sb.toString());
+        assertEquals(Arrays.asList(30, 10, 0), sb.getParameters());
+
+        // every page shares the same SQL
+        sb.limit(25, 50);
+        assertEquals("SELECT * FROM Employee WHERE age > ? ORDER BY name LIMIT ?, ?", sb.toString());
+        assertEquals(Arrays.asList(30, 25, 50), sb.getParameters());
+
+        sb.dialect(Dialect.MYSQL);
+        assertEquals("SELECT * FROM Employee WHERE age > ? ORDER BY name LIMIT ?, ?", sb.toString());
+        assertEquals(Arrays.asList(30, 50, 25), sb.getParameters());
+
+        sb.dialect(Dialect.POSTGRESQL);
+        assertEquals("SELECT * FROM Employee WHERE age > ? ORDER BY name LIMIT ? OFFSET ?", sb.toString());
+        assertEquals(Arrays.asList(30, 25, 50), sb.getParameters());
+
+        sb.dialect(Dialect.SQL_SERVER);
+        assertEquals("SELECT * FROM Employee WHERE age > ? ORDER BY name OFFSET ? ROWS FETCH NEXT ? ROWS ONLY",
+                sb.toString());
+        assertEquals(Arrays.asList(30, 50, 25), sb.getParameters());
+
+        // the count query has no limit, so none of its parameters
+        SelectBuilder count = sb.toCountQuery();
+        assertEquals("SELECT COUNT(*) FROM Employee WHERE age > ?", count.toString());
+        assertEquals(Arrays.asList(30), count.getParameters());
+
+        // a bound limit inside a subquery is merged at the subquery's position
+        SelectBuilder outer = new SelectBuilder("Department")
+                .where(Predicates.inSubSelect("manager_id", new SelectBuilder("Employee").column("id")
+                        .dialect(Dialect.POSTGRESQL).bindLimit().limit(5)))
+                .andWhere(Predicates.eq("active", true));
+        assertEquals("SELECT * FROM Department WHERE manager_id in (SELECT id FROM Employee LIMIT ? OFFSET ?)" +
+                " AND active = ?", outer.toString());
+        assertEquals(Arrays.asList(5, 0, true), outer.getParameters());
+    }
+
+    @Test
+    public void testRerender() {
+
+        SubSelectBuilder orders = new SubSelectBuilder("order_count");
+        orders.column("COUNT(*)").from("Orders o");
+
+        SelectBuilder sb = new SelectBuilder("Customers c")
+                .column("c.name")
+                .column(orders)
+                .where(Predicates.eq("c.country", "India"));
+
+        String sql = sb.toString();
+        assertEquals("SELECT c.name, (SELECT COUNT(*) FROM Orders o) as order_count FROM Customers c" +
+                " WHERE c.country = ?", sql);
+        assertSame(sql, sb.toString());
+
+        sb.andWhere(Predicates.gt("c.age", 30));
+        assertEquals("SELECT c.name, (SELECT COUNT(*) FROM Orders o) as order_count FROM Customers c" +
+                " WHERE c.country = ? AND c.age > ?", sb.toString());
+
+        // changes to a nested sub-select are picked up
+        orders.where(Predicates.eqColumn("o.customer_id", "c.id"));
+        assertEquals("SELECT c.name, (SELECT COUNT(*) FROM Orders o WHERE o.customer_id = c.id) as order_count" +
+                " FROM Customers c WHERE c.country = ? AND c.age > ?", sb.toString());
+
+        sb.orderBy("c.name").limit(10);
+        assertEquals("SELECT c.name, (SELECT COUNT(*) FROM Orders o WHERE o.customer_id = c.id) as order_count" +
+                " FROM Customers c WHERE c.country = ? AND c.age > ? ORDER BY c.name LIMIT 10", sb.toString());
+
+        // as are changes to unions, including those added through getUnions()
+        SelectBuilder union = new SelectBuilder("Suppliers").column("name");
+        sb = new SelectBuilder("Customers").column("name").union(union);
+        assertEquals("SELECT name FROM Customers UNION SELECT name FROM Suppliers", sb.toString());
+
+        union.where(Predicates.eq("country", "India"));
+        assertEquals("SELECT name FROM Customers UNION SELECT name FROM Suppliers WHERE country = ?",
+                sb.toString());
+
+        sb.getUnions().add(new SelectBuilder("Employees").column("name"));
+        assertEquals("SELECT name FROM Customers UNION SELECT name FROM Suppliers WHERE country = ?" +
+                " UNION SELECT name FROM Employees", sb.toString());
+
+        // replacements are picked up even when the new builder has seen as many changes
+        sb.getUnions().set(0, new SelectBuilder("Partners").column("name").where(Predicates.eq("country", "Spain")));
+        assertEquals("SELECT name FROM Customers UNION SELECT name FROM Partners WHERE country = ?" +
+                " UNION SELECT name FROM Employees", sb.toString());
+
+        sb.getUnions().remove(1);
+        sb.getUnions().add(new SelectBuilder("Vendors").column("name"));
+        assertEquals("SELECT name FROM Customers UNION SELECT name FROM Partners WHERE country = ?" +
+                " UNION SELECT name FROM Vendors", sb.toString());
+    }
+
+    @Test
+    public void testRerenderMiddleClauses() {
+
+        SelectBuilder sb = new SelectBuilder("Orders o").column("o.status", "COUNT(*)").where(Predicates.eq("o.year", 2020));
+        sb.toString();
+        sb.groupBy("o.status");
+        sb.toString();
+        sb.join("Customers c ON c.id = o.customer_id");
+        assertEquals("SELECT o.status, COUNT(*) FROM Orders o JOIN Customers c ON c.id = o.customer_id" +
+                " WHERE o.year = ? GROUP BY o.status", sb.toString());
+        sb.having(Predicates.gt("COUNT(*)", 5)).orderBy("o.status");
+        assertEquals("SELECT o.status, COUNT(*) FROM Orders o JOIN Customers c ON c.id = o.customer_id" +
+                " WHERE o.year = ? GROUP BY o.status HAVING COUNT(*) > ? ORDER BY o.status", sb.toString());
+        sb.column("MAX(o.total)");
+        assertEquals("SELECT o.status, COUNT(*), MAX(o.total) FROM Orders o JOIN Customers c ON c.id = o.customer_id" +
+                " WHERE o.year = ? GROUP BY o.status HAVING COUNT(*) > ? ORDER BY o.status", sb.toString());
+    }
+
+    @Test
+    public void testConcurrentRender() throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 200; round++) {
+                SubSelectBuilder orders = new SubSelectBuilder("order_count");
+                orders.column("COUNT(*)").from("Orders o");
+                final SelectBuilder sb = new SelectBuilder("Customers c").column("c.name").column(orders);
+                sb.toString();
+                // rendered again by every thread at once, after a change to the builder and one nested in it
+                sb.where(Predicates.eq("c.country", "India"));
+                orders.where(Predicates.eqColumn("o.customer_id", "c.id"));
+
+                List<Future<String>> futures = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    futures.add(executor.submit(new Callable<String>() {
+                        public String call() {
+                            return sb.toString();
+                        }
+                    }));
+                }
+                for (Future<String> future : futures) {
+                    assertEquals("SELECT c.name, (SELECT COUNT(*) FROM Orders o WHERE o.customer_id = c.id)" +
+                            " as order_count FROM Customers c WHERE c.country = ?", future.get());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 }
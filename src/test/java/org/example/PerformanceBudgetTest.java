@@ -0,0 +1,200 @@
+package org.example;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Fails when building and rendering representative queries allocates more, or
+ * takes longer, than the budgets in performance-budgets.properties. Each
+ * operation builds a new query, renders it and reads its parameters.
+ * <p>
+ * Allocation is measured with the thread allocation counter of the HotSpot
+ * {@link com.sun.management.ThreadMXBean} and is skipped on JVMs without it,
+ * or without a budget for their {@code java.specification.version}.
+ * Latency budgets leave room for slow build machines and coverage
+ * instrumentation, so they only catch large regressions.
+ * <p>
+ * Run with {@code -Dperformance.report=true} to print what each operation
+ * took and allocated, for setting the budgets.
+ */
+public class PerformanceBudgetTest {
+
+    private static final int WARMUP_OPERATIONS = 20000;
+
+    private static final int MEASURED_OPERATIONS = 20000;
+
+    private static final int LATENCY_BATCHES = 21;
+
+    private static final List<Integer> IDS = new ArrayList<>();
+
+    private static final Properties budgets = new Properties();
+
+    /**
+     * Keeps the results alive so the JIT can't drop the work.
+     */
+    private static int sink;
+
+    private interface Operation {
+        void run();
+    }
+
+    @BeforeClass
+    public static void loadBudgets() throws IOException {
+        try (InputStream in = PerformanceBudgetTest.class.getResourceAsStream("/performance-budgets.properties")) {
+            budgets.load(in);
+        }
+        for (int i = 0; i < 1000; i++) {
+            IDS.add(i);
+        }
+    }
+
+    @Test
+    public void testSimpleLookup() {
+        check("simpleLookup", new Operation() {
+            public void run() {
+                SelectBuilder sb = new SelectBuilder("Employee e")
+                        .column("e.id", "e.name")
+                        .where(Predicates.eq("e.id", 42));
+                consume(sb);
+            }
+        });
+    }
+
+    @Test
+    public void testIn1000() {
+        check("in1000", new Operation() {
+            public void run() {
+                SelectBuilder sb = new SelectBuilder("Employee")
+                        .column("id", "name")
+                        .where(Predicates.in("id", IDS));
+                consume(sb);
+            }
+        });
+    }
+
+    @Test
+    public void testNestedSubSelect() {
+        check("nestedSubSelect", new Operation() {
+            public void run() {
+                SubSelectBuilder orders = new SubSelectBuilder("order_count");
+                orders.column("COUNT(*)").from("Orders o").where(Predicates.eqColumn("o.customer_id", "c.id"));
+                SelectBuilder sb = new SelectBuilder("Customers c")
+                        .column("c.name")
+                        .column(orders)
+                        .where(Predicates.eq("c.country", "India"))
+                        .andWhere(Predicates.exists(new SelectBuilder("Payments p").column("1")
+                                .where(Predicates.eqColumn("p.customer_id", "c.id"))
+                                .andWhere(Predicates.gt("p.amount", 100))))
+                        .orderBy("c.name")
+                        .limit(20, 40);
+                consume(sb);
+            }
+        });
+    }
+
+    @Test
+    public void testUnion() {
+        check("union", new Operation() {
+            public void run() {
+                SelectBuilder sb = new SelectBuilder("Customers")
+                        .column("name", "city")
+                        .where(Predicates.like("name", "A%"))
+                        .union(new SelectBuilder("Suppliers")
+                                .column("name", "city")
+                                .where(Predicates.between("rating", 3, 5)));
+                consume(sb);
+            }
+        });
+    }
+
+    private static void consume(SelectBuilder sb) {
+        sink += sb.toString().length() + sb.getParameters().size();
+    }
+
+    private static void check(String name, Operation operation) {
+
+        for (int i = 0; i < WARMUP_OPERATIONS; i++) {
+            operation.run();
+        }
+
+        long nanos = medianNanosPerOperation(operation);
+        report(name + ": " + nanos + " ns per operation");
+        long bytes = allocatedBytesPerOperation(operation);
+        String jdk = System.getProperty("java.specification.version");
+        report(name + ": " + bytes + " bytes per operation on JDK " + jdk);
+
+        long nanosBudget = budget(name + ".nanos");
+        assertTrue(name + " took " + nanos + " ns per operation, over its budget of " + nanosBudget + " ns",
+                nanos <= nanosBudget);
+
+        assumeTrue("thread allocation counters are not available", bytes >= 0);
+        String bytesKey = name + ".bytes." + jdk;
+        assumeTrue("no allocation budget for this JDK: " + bytesKey, budgets.getProperty(bytesKey) != null);
+        long bytesBudget = budget(bytesKey);
+        assertTrue(name + " allocated " + bytes + " bytes per operation, over its budget of " + bytesBudget
+                + " bytes", bytes <= bytesBudget);
+    }
+
+    /**
+     * Returns the bytes allocated per operation, or -1 if the JVM can't tell.
+     */
+    private static long allocatedBytesPerOperation(Operation operation) {
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        long thread = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < MEASURED_OPERATIONS; i++) {
+            operation.run();
+        }
+        return (allocations.getThreadAllocatedBytes(thread) - before) / MEASURED_OPERATIONS;
+    }
+
+    /**
+     * Times batches of operations and returns the median time per operation,
+     * which ignores batches slowed down by garbage collection or the JIT.
+     */
+    private static long medianNanosPerOperation(Operation operation) {
+        int batchSize = MEASURED_OPERATIONS / LATENCY_BATCHES;
+        long[] batches = new long[LATENCY_BATCHES];
+        for (int b = 0; b < LATENCY_BATCHES; b++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batchSize; i++) {
+                operation.run();
+            }
+            batches[b] = (System.nanoTime() - start) / batchSize;
+        }
+        Arrays.sort(batches);
+        return batches[LATENCY_BATCHES / 2];
+    }
+
+    private static void report(String line) {
+        if (Boolean.getBoolean("performance.report")) {
+            System.out.println(line);
+        }
+    }
+
+    private static long budget(String key) {
+        String value = budgets.getProperty(key);
+        assertTrue("no budget for " + key, value != null);
+        return Long.parseLong(value.trim());
+    }
+}
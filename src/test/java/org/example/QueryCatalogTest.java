@@ -0,0 +1,136 @@
+package org.example;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class QueryCatalogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndLoad() throws IOException {
+
+        SubSelectBuilder orderCount = new SubSelectBuilder("order_count");
+        orderCount.column("COUNT(*)").from("Orders o").where(Predicates.eqColumn("o.customer_id", "c.id"));
+
+        Map<String, SelectBuilder> templates = new LinkedHashMap<>();
+        templates.put("customerById", new SelectBuilder("Customers c")
+                .column("c.name")
+                .column(orderCount)
+                .where(Predicates.eq("c.id", 1L)));
+        templates.put("employeesByDept", new SelectBuilder("Employee e")
+                .join("Department d ON e.dept_id = d.id")
+                .where(Predicates.eq("d.name", "Sales"))
+                .andWhere(Predicates.isNull("e.left_on"))
+                .dialect(Dialect.POSTGRESQL)
+                .bindLimit()
+                .limit(20));
+
+        QueryCatalog compiled = QueryCatalog.compile(templates);
+        Path file = folder.newFile("queries.bin").toPath();
+        compiled.write(file);
+
+        QueryCatalog catalog = QueryCatalog.load(file);
+        assertEquals(2, catalog.size());
+        assertNull(catalog.get("unknown"));
+
+        QueryCatalog.CompiledQuery query = catalog.get("customerById");
+        assertEquals("SELECT c.name, (SELECT COUNT(*) FROM Orders o WHERE o.customer_id = c.id) as order_count" +
+                " FROM Customers c WHERE c.id = ?", query.getSql());
+        assertEquals(Arrays.asList("java.lang.Long"), query.getParameterTypes());
+        assertEquals(Arrays.asList("Customers", "Orders"), query.getTables());
+        assertEquals(compiled.get("customerById").getFingerprint(), query.getFingerprint());
+
+        query = catalog.get("employeesByDept");
+        assertEquals("SELECT * FROM Employee e JOIN Department d ON e.dept_id = d.id" +
+                " WHERE d.name = ? AND e.left_on is null LIMIT ? OFFSET ?", query.getSql());
+        assertEquals(Arrays.asList("java.lang.String", "java.lang.Integer", "java.lang.Integer"),
+                query.getParameterTypes());
+        assertEquals(Arrays.asList("Employee", "Department"), query.getTables());
+    }
+
+    @Test
+    public void testNestedParameters() {
+
+        SubSelectBuilder bigOrders = new SubSelectBuilder("big_orders");
+        bigOrders.column("COUNT(*)").from("Orders o")
+                .where(Predicates.eqColumn("o.customer_id", "c.id"))
+                .andWhere(Predicates.gt("o.total", 100.0));
+
+        Map<String, SelectBuilder> templates = new LinkedHashMap<>();
+        templates.put("customers", new SelectBuilder("Customers c")
+                .column("c.name")
+                .column(bigOrders)
+                .where(Predicates.eq("c.id", 1L))
+                .union(new SelectBuilder("Suppliers s")
+                        .column("s.name", "0")
+                        .where(Predicates.eq("s.country", "Chile"))));
+
+        QueryCatalog.CompiledQuery query = QueryCatalog.compile(templates).get("customers");
+        assertEquals(Arrays.asList("java.lang.Double", "java.lang.Long", "java.lang.String"),
+                query.getParameterTypes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPlaceholderWithoutParameter() {
+        Map<String, SelectBuilder> templates = new LinkedHashMap<>();
+        templates.put("names", new SelectBuilder("Employee").column("COALESCE(nickname, ?)")
+                .where(Predicates.eq("name", "Bob")));
+        QueryCatalog.compile(templates);
+    }
+
+    @Test
+    public void testOrderPreserved() throws IOException {
+
+        Map<String, SelectBuilder> templates = new LinkedHashMap<>();
+        for (int i = 50; i > 0; i--) {
+            templates.put("query" + i, new SelectBuilder("Employee").where(Predicates.eq("id", i)));
+        }
+        Path file = folder.newFile("queries.bin").toPath();
+        QueryCatalog.compile(templates).write(file);
+
+        QueryCatalog catalog = QueryCatalog.load(file);
+        assertEquals(new ArrayList<>(templates.keySet()), new ArrayList<>(catalog.getNames()));
+
+        ByteArrayOutputStream rewritten = new ByteArrayOutputStream();
+        catalog.write(rewritten);
+        assertArrayEquals(Files.readAllBytes(file), rewritten.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptFile() throws IOException {
+
+        Map<String, SelectBuilder> templates = new LinkedHashMap<>();
+        templates.put("all", new SelectBuilder("Employee"));
+        Path file = folder.newFile("queries.bin").toPath();
+        QueryCatalog.compile(templates).write(file);
+
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(file, bytes);
+
+        QueryCatalog.load(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedFile() throws IOException {
+        Path file = folder.newFile("queries.bin").toPath();
+        Files.write(file, new byte[] {1, 2});
+        QueryCatalog.load(file);
+    }
+}
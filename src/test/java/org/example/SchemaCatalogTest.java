@@ -0,0 +1,167 @@
+package org.example;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SchemaCatalogTest {
+
+    private static SchemaCatalog catalog;
+
+    @BeforeClass
+    public static void loadCatalog() throws SQLException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:catalog;DB_CLOSE_DELAY=-1");
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE Employee (id INT PRIMARY KEY, name VARCHAR(100), dept_id INT,"
+                    + " photo BLOB, notes VARCHAR(4000))");
+            statement.execute("CREATE TABLE Department (id INT PRIMARY KEY, name VARCHAR(100))");
+            statement.execute("CREATE INDEX employee_dept_name ON Employee (dept_id, name)");
+        }
+        catalog = SchemaCatalog.load(dataSource).markHeavy("employee", "NOTES");
+    }
+
+    @Test
+    public void testLoad() {
+        assertTrue(catalog.hasTable("employee"));
+        assertFalse(catalog.hasTable("Orders"));
+        assertEquals(Arrays.asList("ID", "NAME", "DEPT_ID", "PHOTO", "NOTES"), catalog.getColumns("Employee"));
+        assertTrue(catalog.isHeavy("Employee", "photo"));
+        assertTrue(catalog.isHeavy("Employee", "notes"));
+        assertFalse(catalog.isHeavy("Employee", "name"));
+        assertEquals(Arrays.asList("DEPT_ID", "NAME"), catalog.getIndexes("Employee").get("EMPLOYEE_DEPT_NAME"));
+    }
+
+    @Test
+    public void testExpandStar() {
+
+        SelectBuilder sb = new SelectBuilder("Employee").catalog(catalog);
+        assertEquals("SELECT ID, NAME, DEPT_ID FROM Employee", sb.toString());
+
+        sb = new SelectBuilder("Employee e").column("*").catalog(catalog)
+                .join("Department d ON e.dept_id = d.id");
+        assertEquals("SELECT e.ID, e.NAME, e.DEPT_ID, d.ID, d.NAME FROM Employee e" +
+                " JOIN Department d ON e.dept_id = d.id", sb.toString());
+
+        // tables missing from the catalog are left alone
+        sb = new SelectBuilder("Orders").catalog(catalog);
+        assertEquals("SELECT * FROM Orders", sb.toString());
+
+        sb = new SelectBuilder("Employee").catalog(catalog).column("name", "dept_id as dept").orderBy("dept", false);
+        assertEquals("SELECT name, dept_id as dept FROM Employee ORDER BY dept DESC", sb.toString());
+    }
+
+    @Test
+    public void testAliasesAndKeywords() {
+
+        SubSelectBuilder deptName = new SubSelectBuilder("dept_name");
+        deptName.column("d.name").from("Department d").where(Predicates.eqColumn("d.id", "e.dept_id"));
+        SelectBuilder sb = new SelectBuilder("Employee e").catalog(catalog)
+                .column("e.name")
+                .column(deptName)
+                .orderBy("dept_name");
+        assertEquals("SELECT e.name, (SELECT d.name FROM Department d WHERE d.id = e.dept_id) as dept_name" +
+                " FROM Employee e ORDER BY dept_name", sb.toString());
+
+        sb = new SelectBuilder("Employee").catalog(catalog).column("COUNT(*) cnt", "e.dept_id dept")
+                .orderBy("cnt", false).orderBy("dept");
+        assertEquals("SELECT COUNT(*) cnt, e.dept_id dept FROM Employee ORDER BY cnt DESC, dept", sb.toString());
+
+        sb = new SelectBuilder("Employee").catalog(catalog).column("name", "CURRENT_DATE", "current_timestamp")
+                .orderBy("CURRENT_DATE");
+        assertEquals("SELECT name, CURRENT_DATE, current_timestamp FROM Employee ORDER BY CURRENT_DATE",
+                sb.toString());
+
+        sb = new SelectBuilder("Employee").catalog(catalog).column("DISTINCT dept_id", "COUNT(DISTINCT name) names")
+                .orderBy("names");
+        assertEquals("SELECT DISTINCT dept_id, COUNT(DISTINCT name) names FROM Employee ORDER BY names", sb.toString());
+    }
+
+    @Test
+    public void testMarkHeavyAfterRendering() throws SQLException {
+
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:catalog;DB_CLOSE_DELAY=-1");
+        SchemaCatalog catalog = SchemaCatalog.load(dataSource);
+
+        SelectBuilder sb = new SelectBuilder("Department").catalog(catalog);
+        assertEquals("SELECT ID, NAME FROM Department", sb.toString());
+
+        catalog.markHeavy("Department", "name");
+        assertEquals("SELECT ID FROM Department", sb.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownColumn() {
+        new SelectBuilder("Employee").catalog(catalog).column("nam");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownQualifiedColumn() {
+        new SelectBuilder("Employee e").catalog(catalog)
+                .join("Department d ON e.dept_id = d.id")
+                .column("e.name", "d.title");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownOrderBy() {
+        new SelectBuilder("Employee").catalog(catalog).column("name").orderBy("salary", true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownColumnBeforeCatalog() {
+        new SelectBuilder("Employee").column("nam").orderBy("nam").catalog(catalog);
+    }
+
+    @Test
+    public void testValidate() {
+
+        // the join comes after the column, so d.title is only caught by validate()
+        SelectBuilder sb = new SelectBuilder("Employee e").catalog(catalog)
+                .column("e.name", "d.title")
+                .join("Department d ON e.dept_id = d.id");
+        assertEquals("SELECT e.name, d.title FROM Employee e JOIN Department d ON e.dept_id = d.id", sb.toString());
+        try {
+            sb.validate();
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("d.title"));
+        }
+
+        new SelectBuilder("Employee e").catalog(catalog).column("e.name").orderBy("e.id").validate();
+    }
+
+    @Test
+    public void testCoveringIndex() {
+
+        SelectBuilder sb = new SelectBuilder("Employee").catalog(catalog)
+                .column("name")
+                .where(Predicates.eq("dept_id", 4))
+                .orderBy("name");
+        assertEquals("EMPLOYEE_DEPT_NAME", sb.coveringIndex());
+
+        sb = new SelectBuilder("Employee").catalog(catalog)
+                .column("id")
+                .where(Predicates.eq("id", 4));
+        assertTrue(sb.coveringIndex().startsWith("PRIMARY_KEY"));
+
+        sb = new SelectBuilder("Employee").catalog(catalog)
+                .column("name", "id")
+                .where(Predicates.eq("dept_id", 4));
+        assertNull(sb.coveringIndex());
+
+        assertNull(new SelectBuilder("Employee").column("name").coveringIndex());
+    }
+}
@@ -0,0 +1,261 @@
+package org.example;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShardedQueryExecutorTest {
+
+    private static final int SHARDS = 3;
+
+    private final List<DataSource> shards = new ArrayList<>();
+
+    private final ShardRouter router = new ShardRouter("tenant_id", SHARDS);
+
+    private ExecutorService executor;
+
+    private ShardedQueryExecutor shardedExecutor;
+
+    @Before
+    public void setUp() throws SQLException {
+        for (int i = 0; i < SHARDS; i++) {
+            JdbcDataSource dataSource = new JdbcDataSource();
+            dataSource.setURL("jdbc:h2:mem:shard" + i + ";DB_CLOSE_DELAY=-1");
+            try (Connection connection = dataSource.getConnection();
+                 Statement statement = connection.createStatement()) {
+                statement.execute("DROP TABLE IF EXISTS Orders");
+                statement.execute("CREATE TABLE Orders (id INT PRIMARY KEY, tenant_id INT, total INT)");
+            }
+            shards.add(dataSource);
+        }
+
+        // tenant t lives on shard t % 3, and has orders t * 10 + n with total n * 10 + t
+        for (int tenant = 0; tenant < 6; tenant++) {
+            try (Connection connection = shards.get(tenant % SHARDS).getConnection();
+                 PreparedStatement statement = connection.prepareStatement("INSERT INTO Orders VALUES (?, ?, ?)")) {
+                for (int n = 1; n <= 3; n++) {
+                    statement.setInt(1, tenant * 10 + n);
+                    statement.setInt(2, tenant);
+                    statement.setInt(3, n * 10 + tenant);
+                    statement.executeUpdate();
+                }
+            }
+        }
+
+        executor = Executors.newFixedThreadPool(SHARDS);
+        shardedExecutor = new ShardedQueryExecutor(shards, router, executor);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        SqlShapeAuditor.disable();
+    }
+
+    @Test
+    public void testRoute() {
+
+        assertEquals(new TreeSet<>(Arrays.asList(1)),
+                router.route(new SelectBuilder("Orders").where(Predicates.eq("tenant_id", 4))));
+
+        assertEquals(new TreeSet<>(Arrays.asList(0, 2)),
+                router.route(new SelectBuilder("Orders o").where(Predicates.in("o.TENANT_ID", Arrays.asList(2, 3, 5)))));
+
+        assertEquals(new TreeSet<>(Arrays.asList(0, 1)),
+                router.route(new SelectBuilder("Orders").where(Predicates.between("tenant_id", 3, 4))));
+
+        // conditions on the shard key are intersected
+        assertEquals(new TreeSet<>(Arrays.asList(2)),
+                router.route(new SelectBuilder("Orders")
+                        .where(Predicates.in("tenant_id", Arrays.asList(1, 2)))
+                        .andWhere(Predicates.gt("total", 10))
+                        .andWhere(Predicates.between("tenant_id", 2, 3))));
+
+        assertEquals(Collections.<Integer>emptySet(),
+                router.route(new SelectBuilder("Orders")
+                        .where(Predicates.eq("tenant_id", 1))
+                        .andWhere(Predicates.eq("tenant_id", 2))));
+
+        // not routable
+        assertEquals(new TreeSet<>(Arrays.asList(0, 1, 2)),
+                router.route(new SelectBuilder("Orders").where(Predicates.gt("tenant_id", 4))));
+        assertEquals(new TreeSet<>(Arrays.asList(0, 1, 2)),
+                router.route(new SelectBuilder("Orders")
+                        .where(Predicates.eq("tenant_id", 4))
+                        .orWhere(Predicates.eq("total", 10))));
+        assertEquals(new TreeSet<>(Arrays.asList(0, 1, 2)),
+                router.route(new SelectBuilder("Orders").where(Predicates.between("tenant_id", 0, 100000))));
+    }
+
+    @Test
+    public void testSingleShard() throws SQLException {
+
+        List<Map<String, Object>> rows = shardedExecutor.query(new SelectBuilder("Orders")
+                .column("id")
+                .where(Predicates.eq("tenant_id", 4))
+                .orderBy("id", false));
+
+        assertEquals(Arrays.asList(43, 42, 41), ids(rows));
+    }
+
+    @Test
+    public void testScatterGather() throws SQLException {
+
+        List<Map<String, Object>> rows = shardedExecutor.query(new SelectBuilder("Orders")
+                .column("id", "total")
+                .where(Predicates.gt("total", 25))
+                .orderBy("total"));
+
+        assertEquals(Arrays.asList(30, 31, 32, 33, 34, 35), totals(rows));
+
+        rows = shardedExecutor.query(new SelectBuilder("Orders")
+                .column("id", "total")
+                .where(Predicates.in("tenant_id", Arrays.asList(0, 1, 2)))
+                .orderBy("total", false)
+                .orderBy("id")
+                .dialect(Dialect.POSTGRESQL)
+                .limit(4, 2));
+
+        assertEquals(Arrays.asList(30, 22, 21, 20), totals(rows));
+    }
+
+    @Test
+    public void testScatterGatherBoundLimit() throws SQLException {
+
+        List<Map<String, Object>> rows = shardedExecutor.query(new SelectBuilder("Orders o")
+                .column("o.id", "o.total")
+                .orderBy("o.id")
+                .dialect(Dialect.POSTGRESQL)
+                .bindLimit()
+                .limit(5, 10));
+
+        assertEquals(Arrays.asList(32, 33, 41, 42, 43), ids(rows));
+    }
+
+    @Test
+    public void testScatterGatherUnordered() throws SQLException {
+
+        List<Map<String, Object>> rows = shardedExecutor.query(new SelectBuilder("Orders").column("id"));
+
+        assertEquals(18, rows.size());
+    }
+
+    @Test
+    public void testNullOrdering() throws SQLException {
+
+        for (int tenant = 0; tenant < 2; tenant++) {
+            try (Connection connection = shards.get(tenant).getConnection();
+                 Statement statement = connection.createStatement()) {
+                statement.execute("INSERT INTO Orders VALUES (" + (100 + tenant) + ", " + tenant + ", NULL)");
+            }
+        }
+        SelectBuilder query = new SelectBuilder("Orders")
+                .column("id", "total")
+                .where(Predicates.in("tenant_id", Arrays.asList(0, 1)))
+                .orderBy("total")
+                .orderBy("id")
+                .limit(3);
+
+        assertEquals(Arrays.asList(100, 101, 1), ids(shardedExecutor.query(query)));
+
+        assertEquals(Arrays.asList(13, 3, 12), ids(shardedExecutor.query(new SelectBuilder("Orders")
+                .column("id", "total")
+                .where(Predicates.in("tenant_id", Arrays.asList(0, 1)))
+                .orderBy("total DESC NULLS LAST")
+                .limit(3))));
+
+        setNullOrdering("HIGH");
+        try {
+            ShardedQueryExecutor nullsHigh = new ShardedQueryExecutor(shards, router, executor, true);
+            assertEquals(Arrays.asList(1, 11, 2), ids(nullsHigh.query(query)));
+        } finally {
+            setNullOrdering("LOW");
+        }
+    }
+
+    private void setNullOrdering(String ordering) throws SQLException {
+        for (DataSource shard : shards) {
+            try (Connection connection = shard.getConnection();
+                 Statement statement = connection.createStatement()) {
+                statement.execute("SET DEFAULT_NULL_ORDERING " + ordering);
+            }
+        }
+    }
+
+    @Test
+    public void testAuditedOnce() throws SQLException {
+
+        SqlShapeAuditor auditor = new SqlShapeAuditor().enable();
+
+        shardedExecutor.query(new SelectBuilder("Orders").column("id").orderBy("id"));
+
+        assertEquals(1, auditor.getCalls());
+        String location = auditor.topCallSites(1).get(0).getLocation();
+        assertTrue(location, location.contains("ShardedQueryExecutorTest.testAuditedOnce"));
+    }
+
+    @Test
+    public void testScatterGatherNotMergeable() throws SQLException {
+
+        List<SelectBuilder> queries = Arrays.asList(
+                new SelectBuilder("Orders").distinct().column("tenant_id"),
+                new SelectBuilder("Orders").column("tenant_id", true).column("SUM(total)"),
+                new SelectBuilder("Orders").column("tenant_id").groupBy("tenant_id"),
+                new SelectBuilder("Orders").column("tenant_id").having(Predicates.gt("tenant_id", 1)),
+                new SelectBuilder("Orders").column("COUNT(*)"));
+        for (SelectBuilder query : queries) {
+            try {
+                shardedExecutor.query(query);
+                fail(query.toString());
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+
+        // on a single shard they are fine
+        List<Map<String, Object>> rows = shardedExecutor.query(new SelectBuilder("Orders")
+                .column("COUNT(*) AS n")
+                .where(Predicates.eq("tenant_id", 4)));
+        assertEquals(3L, ((Number) rows.get(0).get("N")).longValue());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testScatterGatherUnknownOrderBy() throws SQLException {
+        shardedExecutor.query(new SelectBuilder("Orders").column("id").orderBy("total"));
+    }
+
+    private static List<Object> ids(List<Map<String, Object>> rows) {
+        List<Object> ids = new ArrayList<>();
+        for (Map<String, Object> row : rows) {
+            ids.add(row.get("ID"));
+        }
+        return ids;
+    }
+
+    private static List<Object> totals(List<Map<String, Object>> rows) {
+        List<Object> totals = new ArrayList<>();
+        for (Map<String, Object> row : rows) {
+            totals.add(row.get("TOTAL"));
+        }
+        return totals;
+    }
+}
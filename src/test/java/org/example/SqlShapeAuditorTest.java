@@ -0,0 +1,163 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SqlShapeAuditorTest {
+
+    @After
+    public void tearDown() {
+        SqlShapeAuditor.disable();
+    }
+
+    @Test
+    public void testCallSites() {
+
+        SqlShapeAuditor auditor = new SqlShapeAuditor().enable();
+
+        for (int i = 1; i <= 200; i++) {
+            variableIn(i);
+            fixedShape(i);
+        }
+        SqlShapeAuditor.disable();
+        variableIn(500);
+
+        assertEquals(400, auditor.getCalls());
+        assertEquals(201, auditor.getDistinctShapes(), 10);
+
+        List<SqlShapeAuditor.CallSite> sites = auditor.topCallSites(5);
+        assertEquals(2, sites.size());
+
+        SqlShapeAuditor.CallSite variable = sites.get(0);
+        assertTrue(variable.getLocation(), variable.getLocation().contains("variableIn"));
+        assertEquals(200, variable.getCalls());
+        assertEquals(200, variable.getDistinctShapes(), 10);
+        assertEquals(0, variable.getLiteralCalls());
+
+        SqlShapeAuditor.CallSite fixed = sites.get(1);
+        assertTrue(fixed.getLocation(), fixed.getLocation().contains("fixedShape"));
+        assertEquals(1, fixed.getDistinctShapes());
+
+        assertEquals(auditor.report(1).split(System.lineSeparator())[1], variable.toString());
+    }
+
+    @Test
+    public void testLiterals() {
+
+        SqlShapeAuditor auditor = new SqlShapeAuditor().enable();
+
+        List<SelectBuilder> builders = Arrays.asList(
+                new SelectBuilder("Employee").where(Predicates.eq("name", "Bob")),
+                new SelectBuilder("Employee").column("name").limit(10));
+        for (SelectBuilder builder : builders) {
+            builder.toString();
+        }
+
+        SqlShapeAuditor.CallSite site = auditor.topCallSites(1).get(0);
+        assertEquals(2, site.getCalls());
+        assertEquals(1, site.getLiteralCalls());
+        assertEquals("SELECT name FROM Employee LIMIT 10", site.getLiteralExample());
+
+        assertTrue(SqlShapeAuditor.hasLiteral("SELECT * FROM Employee WHERE name = 'Bob'"));
+        assertTrue(SqlShapeAuditor.hasLiteral("SELECT * FROM Employee WHERE age > 30.5"));
+        assertFalse(SqlShapeAuditor.hasLiteral("SELECT t1.a2, COUNT(*) FROM t1 WHERE a2 = ? GROUP BY t1.a2"));
+        assertTrue(SqlShapeAuditor.hasLiteral("SELECT name FROM Employee WHERE name = 'O''Brien'"));
+        assertTrue(SqlShapeAuditor.hasLiteral("SELECT c.name, (SELECT COUNT(*) FROM Orders o WHERE o.total > 100)"
+                + " FROM Customers c"));
+        assertTrue(SqlShapeAuditor.hasLiteral("SELECT a FROM t ORDER BY CASE WHEN b = 3 THEN c END"));
+
+        // constants that are the same in every statement
+        assertFalse(SqlShapeAuditor.hasLiteral("SELECT * FROM Orders o WHERE exists (SELECT 1 FROM X) ORDER BY 1"));
+        assertFalse(SqlShapeAuditor.hasLiteral("SELECT COUNT(1), 'order' as kind, COALESCE(total, 0) FROM Orders"
+                + " ORDER BY 2 DESC, 1"));
+        assertFalse(SqlShapeAuditor.hasLiteral("SELECT 'it''s' FROM t WHERE a = ?"));
+    }
+
+    @Test
+    public void testNestedBuildersNotRecorded() {
+
+        SqlShapeAuditor auditor = new SqlShapeAuditor().enable();
+
+        SubSelectBuilder count = new SubSelectBuilder("order_count");
+        count.column("COUNT(*)").from("Orders");
+        new SelectBuilder("Customers")
+                .column(count)
+                .where(Predicates.exists(new SelectBuilder("Orders")))
+                .union(new SelectBuilder("Suppliers"))
+                .toString();
+
+        assertEquals(1, auditor.getCalls());
+    }
+
+    @Test
+    public void testMaxCallSites() {
+
+        SqlShapeAuditor auditor = new SqlShapeAuditor(2);
+        auditor.record("SELECT a FROM t", "first");
+        for (int i = 0; i < 5; i++) {
+            auditor.record("SELECT b FROM t WHERE id = " + i, "second");
+        }
+        // a busy call site showing up late replaces the least active one
+        for (int i = 0; i < 10; i++) {
+            auditor.record("SELECT c FROM t WHERE id IN (" + i + ")", "third");
+        }
+
+        List<SqlShapeAuditor.CallSite> sites = auditor.topCallSites(10);
+        assertEquals(2, sites.size());
+        assertEquals("third", sites.get(0).getLocation());
+        assertEquals(10, sites.get(0).getCalls());
+        assertEquals(10, sites.get(0).getDistinctShapes());
+        assertEquals("second", sites.get(1).getLocation());
+        assertEquals(16, auditor.getCalls());
+    }
+
+    @Test
+    public void testMaxCallSitesConcurrently() throws Exception {
+
+        final SqlShapeAuditor auditor = new SqlShapeAuditor(10);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        for (int i = 0; i < 1000; i++) {
+                            auditor.record("SELECT a FROM t", "site" + thread + "-" + i % 50);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(10, auditor.topCallSites(100).size());
+    }
+
+    private static void variableIn(int size) {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            ids.add(i);
+        }
+        new SelectBuilder("Employee").where(Predicates.in("id", ids)).toString();
+    }
+
+    private static void fixedShape(int id) {
+        new SelectBuilder("Employee").where(Predicates.eq("id", id)).toString();
+    }
+}